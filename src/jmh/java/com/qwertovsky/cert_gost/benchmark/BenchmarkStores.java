@@ -0,0 +1,94 @@
+package com.qwertovsky.cert_gost.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import com.qwertovsky.cert_gost.TestKeys;
+import com.qwertovsky.cert_gost.store.GostStore;
+import com.qwertovsky.cert_gost.store.PfxStore;
+import com.qwertovsky.cert_gost.store.PkcsStore;
+import com.qwertovsky.cert_gost.store.SoftPkcs11;
+import com.sun.jna.NativeLong;
+
+import ru.rutoken.pkcs11jna.Pkcs11Constants;
+import ru.rutoken.samples.pkcs11utils.Pkcs11Operations;
+import ru.rutoken.samples.pkcs11utils.RtPkcs11Memory;
+
+/**
+ * {@link TestKeys} certificate in PFX file and in {@link SoftPkcs11} token.
+ */
+class BenchmarkStores {
+
+	final File dir;
+	final File pfxFile;
+	private final TestKeys keys;
+	private RtPkcs11Memory pkcs11;
+	private NativeLong pkcsSession;
+
+	BenchmarkStores() throws Exception {
+		dir = Files.createTempDirectory("gost_sign_jmh").toFile();
+		keys = new TestKeys();
+		pfxFile = keys.createPfx(dir);
+	}
+
+	GostStore open(StoreKind kind) throws Exception {
+		switch (kind) {
+			case PKCS11:
+			case PKCS11_TOKEN_DIGEST:
+				pkcs11 = SoftPkcs11.create(keys.certificateHolder, keys.keyPair.getPrivate(), TestKeys.ALIAS);
+				pkcsSession = new NativeLong(Pkcs11Constants.CK_INVALID_HANDLE);
+				Pkcs11Operations.initializePkcs11AndLoginToFirstToken(pkcs11, pkcsSession,
+						String.valueOf(TestKeys.PIN).getBytes());
+				PkcsStore pkcsStore = new PkcsStore(pkcs11, pkcsSession, TestKeys.ALIAS);
+				pkcsStore.setTokenDigest(kind == StoreKind.PKCS11_TOKEN_DIGEST);
+				return pkcsStore;
+			case PFX:
+			default:
+				return new PfxStore(pfxFile, TestKeys.ALIAS, TestKeys.PIN);
+		}
+	}
+
+	File createData(String name, int size) throws Exception {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		File file = new File(dir, name);
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	File createPdf(String name, int pages) throws Exception {
+		File file = new File(dir, name);
+		try (PDDocument doc = new PDDocument()) {
+			for (int i = 0; i < pages; i++) {
+				PDPage page = new PDPage();
+				doc.addPage(page);
+				try (PDPageContentStream content = new PDPageContentStream(doc, page)) {
+					content.beginText();
+					content.setFont(PDType1Font.HELVETICA, 12);
+					content.newLineAtOffset(100, 700);
+					content.showText("Benchmark page " + (i + 1));
+					content.endText();
+				}
+			}
+			doc.save(file);
+		}
+		return file;
+	}
+
+	void close() {
+		if (pkcsSession != null) {
+			Pkcs11Operations.logoutAndFinalizePkcs11Library(pkcs11, pkcsSession);
+			pkcsSession = null;
+		}
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+}
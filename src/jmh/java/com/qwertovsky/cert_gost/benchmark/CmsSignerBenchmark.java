@@ -0,0 +1,76 @@
+package com.qwertovsky.cert_gost.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qwertovsky.cert_gost.CmsSigner;
+import com.qwertovsky.cert_gost.Verify;
+
+/**
+ * CMS signature of in-memory document, detached and attached
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CmsSignerBenchmark {
+
+	@Param({"PFX", "PKCS11", "PKCS11_TOKEN_DIGEST"})
+	public StoreKind store;
+
+	@Param({"1024", "1048576", "16777216"})
+	public int size;
+
+	private BenchmarkStores stores;
+	private CmsSigner cmsSigner;
+	private byte[] data;
+	private byte[] detachedSignature;
+	// certificate is valid from yesterday
+	private final Instant date = Instant.now();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		stores = new BenchmarkStores();
+		cmsSigner = new CmsSigner(stores.open(store));
+		data = Files.readAllBytes(stores.createData("data.bin", size).toPath());
+		detachedSignature = cmsSigner.sign(new ByteArrayInputStream(data), date, false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		stores.close();
+	}
+
+	@Benchmark
+	public byte[] signDetached() throws Exception {
+		return cmsSigner.sign(new ByteArrayInputStream(data), date, false);
+	}
+
+	@Benchmark
+	public byte[] signAttached() throws Exception {
+		return cmsSigner.sign(new ByteArrayInputStream(data), date, true);
+	}
+
+	@Benchmark
+	public boolean verifyDetached() throws Exception {
+		return Verify.verifyDetachedData(detachedSignature, data);
+	}
+}
@@ -0,0 +1,62 @@
+package com.qwertovsky.cert_gost.benchmark;
+
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.GOST3411_2012_256Digest;
+import org.bouncycastle.crypto.digests.GOST3411_2012_512Digest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qwertovsky.cert_gost.StreamDigestCalculator;
+
+/**
+ * GOST R 34.11-2012 throughput through {@link StreamDigestCalculator}, data is written in 32 KB chunks as CmsSigner does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigestBenchmark {
+
+	private static final int CHUNK_SIZE = 32 * 1024;
+
+	@Param({"256", "512"})
+	public int digestSize;
+
+	@Param({"1048576", "16777216"})
+	public int size;
+
+	private byte[] data;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		data = new byte[size];
+		new Random(size).nextBytes(data);
+	}
+
+	@Benchmark
+	public byte[] digest() throws Exception {
+		Digest digest = digestSize == 512 ? new GOST3411_2012_512Digest() : new GOST3411_2012_256Digest();
+		StreamDigestCalculator digestCalculator = new StreamDigestCalculator(digest);
+		OutputStream os = digestCalculator.getOutputStream();
+		for (int off = 0; off < data.length; off += CHUNK_SIZE) {
+			os.write(data, off, Math.min(CHUNK_SIZE, data.length - off));
+		}
+		return digestCalculator.getDigest();
+	}
+}
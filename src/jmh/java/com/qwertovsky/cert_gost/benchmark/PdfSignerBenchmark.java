@@ -0,0 +1,97 @@
+package com.qwertovsky.cert_gost.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qwertovsky.cert_gost.CmsSigner;
+import com.qwertovsky.cert_gost.PdfSignResult;
+import com.qwertovsky.cert_gost.PdfSigner;
+import com.qwertovsky.cert_gost.Verify;
+import com.qwertovsky.cert_gost.store.GostStore;
+
+/**
+ * PDF signature with and without visual field, and PDF verification
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PdfSignerBenchmark {
+
+	@Param({"PFX", "PKCS11"})
+	public StoreKind store;
+
+	@Param({"1", "100"})
+	public int pages;
+
+	private BenchmarkStores stores;
+	private PdfSigner pdfSigner;
+	private PdfSigner visualPdfSigner;
+	private File pdfFile;
+	private File signedPdfFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		stores = new BenchmarkStores();
+		GostStore gostStore = stores.open(store);
+		CmsSigner cmsSigner = new CmsSigner(gostStore);
+		// certificate is valid from yesterday
+		Instant date = Instant.now();
+		pdfSigner = PdfSigner.builder(cmsSigner, gostStore.getCertificateHolder())
+				.date(date)
+				.reason("Benchmark")
+				.location("Moscow")
+				.build();
+		visualPdfSigner = PdfSigner.builder(cmsSigner, gostStore.getCertificateHolder())
+				.date(date)
+				.reason("Benchmark")
+				.location("Moscow")
+				.visual(true)
+				.x(100)
+				.y(100)
+				.build();
+		pdfFile = stores.createPdf("document.pdf", pages);
+		pdfSigner.sign(pdfFile);
+		signedPdfFile = new File(pdfFile.getParent(), "document_signed.pdf");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		pdfSigner.close();
+		visualPdfSigner.close();
+		stores.close();
+	}
+
+	@Benchmark
+	public PdfSignResult sign() throws Exception {
+		return pdfSigner.sign(pdfFile);
+	}
+
+	@Benchmark
+	public PdfSignResult signVisual() throws Exception {
+		return visualPdfSigner.sign(pdfFile);
+	}
+
+	@Benchmark
+	public boolean verify() throws Exception {
+		return Verify.verifyPdf(signedPdfFile);
+	}
+}
@@ -0,0 +1,11 @@
+package com.qwertovsky.cert_gost.benchmark;
+
+/**
+ * Store used by benchmark. Token is {@link com.qwertovsky.cert_gost.store.SoftPkcs11}
+ */
+public enum StoreKind {
+	PFX,
+	PKCS11,
+	// hash on token too
+	PKCS11_TOKEN_DIGEST
+}
@@ -0,0 +1,99 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sign many PDF documents with one {@link PdfSigner}, so reason, location and visual settings are shared.
+ * Errors are reported per file, the batch goes on.
+ * <p>
+ * Signed documents are written to output directory with the same names,
+ * or next to the documents as file_signed.pdf without output directory.
+ * Documents of the output directory itself are not overwritten, they fail.
+ * Only .pdf files are signed, file_signed.pdf files of previous runs are skipped.
+ */
+public class BatchPdfSigner {
+
+	private final PdfSigner pdfSigner;
+	private final int threads;
+	private final File outputDir;
+
+	/**
+	 * @param threads documents signed at the same time, more than 1 only for thread safe store
+	 * @param outputDir directory for signed documents, null to write them next to documents
+	 */
+	public BatchPdfSigner(PdfSigner pdfSigner, int threads, File outputDir) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads should be positive: " + threads);
+		}
+		this.pdfSigner = pdfSigner;
+		this.threads = threads;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * PDF documents from batch inputs. Other files and signed documents written next to documents are skipped.
+	 */
+	public static List<File> selectDocuments(List<File> files) {
+		List<File> documents = new ArrayList<>();
+		for (File file : files) {
+			String name = file.getName().toLowerCase(Locale.ROOT);
+			if (name.endsWith(".pdf") && !name.endsWith(PdfSigner.SIGNED_SUFFIX)) {
+				documents.add(file);
+			}
+		}
+		return documents;
+	}
+
+	public BatchSigner.Result sign(List<File> files, PrintStream out) throws IOException, InterruptedException {
+		if (outputDir != null) {
+			checkOutputNames(files);
+			if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+				throw new IOException("Can't create output directory: " + outputDir);
+			}
+		}
+		return BatchSigner.run(files, threads, this::signFile, out);
+	}
+
+	// documents from different directories can't go to one directory with the same name
+	private void checkOutputNames(List<File> files) throws IOException {
+		Map<String, File> names = new HashMap<>();
+		for (File file : files) {
+			File other = names.put(file.getName(), file);
+			if (other != null) {
+				throw new IOException("Documents have the same name in output directory: " + other + ", " + file);
+			}
+		}
+	}
+
+	private BatchSigner.FileResult signFile(File fileToSig) {
+		long start = System.nanoTime();
+		try {
+			PdfSignResult result;
+			if (outputDir == null) {
+				result = pdfSigner.sign(fileToSig);
+			} else {
+				File signedFile = new File(outputDir, fileToSig.getName());
+				// signed document is written while the document is read, it can't be the same file
+				if (signedFile.getCanonicalFile().equals(fileToSig.getCanonicalFile())) {
+					return BatchSigner.FileResult.failed(fileToSig, System.nanoTime() - start,
+							"Output file is the document itself: " + signedFile);
+				}
+				result = pdfSigner.sign(fileToSig, signedFile);
+			}
+			if (Boolean.FALSE.equals(result.isVerified())) {
+				return BatchSigner.FileResult.failed(fileToSig, System.nanoTime() - start,
+						"Signature verification failed");
+			}
+			return BatchSigner.FileResult.ok(fileToSig, System.nanoTime() - start);
+		} catch (Throwable e) {
+			return BatchSigner.FileResult.failed(fileToSig, System.nanoTime() - start, String.valueOf(e.getMessage()));
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Sign many files with one store. Errors are reported per file, the batch goes on.
+ * Files are signed in parallel if the store is thread safe.
+ * Results are reported in input order regardless of the number of threads.
+ */
+public class BatchSigner {
+
+	private final CmsSigner cmsSigner;
+	private final int threads;
+	private final VerifyPolicy verifyPolicy;
+
+	public BatchSigner(CmsSigner cmsSigner) {
+		this(cmsSigner, 1);
+	}
+
+	public BatchSigner(CmsSigner cmsSigner, int threads) {
+		this(cmsSigner, threads, VerifyPolicy.full());
+	}
+
+	public BatchSigner(CmsSigner cmsSigner, int threads, VerifyPolicy verifyPolicy) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads should be positive: " + threads);
+		}
+		this.cmsSigner = cmsSigner;
+		this.threads = threads;
+		this.verifyPolicy = verifyPolicy;
+	}
+
+	public static boolean isBatch(CommandLine commandLine) {
+		return commandLine.hasOption(CliOptions.INPUT_DIR)
+				|| commandLine.hasOption(CliOptions.INPUT_GLOB)
+				|| commandLine.hasOption(CliOptions.INPUT_LIST);
+	}
+
+	/**
+	 * Collect input files from --input-dir, --input-glob and --input-list options.
+	 */
+	public static List<File> collectInputs(CommandLine commandLine) throws IOException {
+		List<File> files = new ArrayList<>();
+		if (commandLine.hasOption(CliOptions.INPUT_DIR)) {
+			files.addAll(listDirectory(new File(commandLine.getOptionValue(CliOptions.INPUT_DIR))));
+		}
+		if (commandLine.hasOption(CliOptions.INPUT_GLOB)) {
+			files.addAll(listGlob(commandLine.getOptionValue(CliOptions.INPUT_GLOB)));
+		}
+		if (commandLine.hasOption(CliOptions.INPUT_LIST)) {
+			files.addAll(listManifest(new File(commandLine.getOptionValue(CliOptions.INPUT_LIST))));
+		}
+		return files;
+	}
+
+	/**
+	 * Regular files in directory tree except signatures, sorted by path.
+	 * Signing and verification take the same files from --input-dir.
+	 */
+	public static List<File> listDirectory(File dir) throws IOException {
+		if (!dir.isDirectory()) {
+			throw new IOException("Directory not found: " + dir);
+		}
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			return paths
+					.filter(Files::isRegularFile)
+					.filter(p -> !p.getFileName().toString().endsWith(".sig"))
+					.sorted()
+					.map(Path::toFile)
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Files matching glob pattern except signatures, e.g. docs/**.pdf
+	 */
+	public static List<File> listGlob(String pattern) throws IOException {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		// walk from the longest part of the pattern without wildcards
+		Path base = Paths.get("");
+		Path patternPath = Paths.get(pattern.replaceAll("[*?\\[{].*$", "x"));
+		if (patternPath.getParent() != null) {
+			base = patternPath.getParent();
+		}
+		if (!Files.isDirectory(base)) {
+			return Collections.emptyList();
+		}
+		try (Stream<Path> paths = Files.walk(base)) {
+			return paths
+					.filter(Files::isRegularFile)
+					.filter(matcher::matches)
+					.filter(p -> !p.getFileName().toString().endsWith(".sig"))
+					.sorted()
+					.map(Path::toFile)
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Manifest file has one path per line. Empty lines and lines started with # are skipped.
+	 */
+	public static List<File> listManifest(File manifest) throws IOException {
+		List<File> files = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.strip();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				files.add(new File(line));
+			}
+		}
+		return files;
+	}
+
+	public Result sign(List<File> files, Instant date, boolean encapsulate, PrintStream out)
+			throws InterruptedException {
+		return run(files, threads, file -> signFile(file, date, encapsulate), out);
+	}
+
+	/**
+	 * Sign every file by task. Each thread works on one file at a time,
+	 * so memory is bounded by number of threads.
+	 */
+	static Result run(List<File> files, int threads, FileTask task, PrintStream out)
+			throws InterruptedException {
+		Result result = new Result();
+		long start = System.nanoTime();
+		if (threads == 1) {
+			for (File file : files) {
+				FileResult fileResult = task.sign(file);
+				result.files.add(fileResult);
+				fileResult.print(out);
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<FileResult>> futures = new ArrayList<>(files.size());
+				for (File file : files) {
+					futures.add(executor.submit(() -> task.sign(file)));
+				}
+				// wait in input order to keep the report deterministic
+				for (Future<FileResult> future : futures) {
+					FileResult fileResult = getResult(future);
+					result.files.add(fileResult);
+					fileResult.print(out);
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	private static FileResult getResult(Future<FileResult> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			// tasks catch every Throwable, so it is a bug
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private FileResult signFile(File fileToSig, Instant date, boolean encapsulate) {
+		long start = System.nanoTime();
+		try {
+			if (Boolean.FALSE.equals(signAndVerify(fileToSig, date, encapsulate))) {
+				return FileResult.failed(fileToSig, System.nanoTime() - start, "Signature verification failed");
+			}
+			return FileResult.ok(fileToSig, System.nanoTime() - start);
+		} catch (Throwable e) {
+			return FileResult.failed(fileToSig, System.nanoTime() - start, String.valueOf(e.getMessage()));
+		}
+	}
+
+	/**
+	 * Write file.sig next to the file and verify it by policy.
+	 * @return result of verification, null if the signature was not verified
+	 */
+	public Boolean signAndVerify(File fileToSig, Instant date, boolean encapsulate) throws Exception {
+		byte[] contentDigest = null;
+		byte[] sign;
+		if (encapsulate) {
+			sign = cmsSigner.sign(fileToSig, date, true);
+		} else {
+			// digest is kept for in-memory verification
+			contentDigest = cmsSigner.calculateDigest(fileToSig);
+			sign = cmsSigner.signDigest(contentDigest, date);
+		}
+		return writeAndVerify(fileToSig, sign, contentDigest, verifyPolicy);
+	}
+
+	/**
+	 * Write file.sig next to the file and verify it by policy.
+	 * @param contentDigest digest of detached signature, null for attached signature
+	 * @return result of verification, null if the signature was not verified
+	 */
+	static Boolean writeAndVerify(File fileToSig, byte[] sign, byte[] contentDigest, VerifyPolicy verifyPolicy)
+			throws Exception {
+		boolean encapsulate = contentDigest == null;
+		File fileSig = new File(fileToSig.getParent(), fileToSig.getName() + ".sig");
+		try (FileOutputStream sigFos = new FileOutputStream(fileSig)) {
+			sigFos.write(sign);
+		}
+		if (!verifyPolicy.shouldVerify()) {
+			return null;
+		}
+		if (verifyPolicy.isInMemory()) {
+			return encapsulate ? Verify.verifyAttached(sign) : Verify.verifyDigest(sign, contentDigest);
+		}
+		// signature and content are read again from disk
+		return encapsulate
+				? Verify.verifyAttached(Files.readAllBytes(fileSig.toPath()))
+				: Verify.verifyDetached(fileToSig, fileSig);
+	}
+
+	/**
+	 * Sign one file. Errors are returned as failed result
+	 */
+	interface FileTask {
+		FileResult sign(File file);
+	}
+
+	public static class FileResult {
+		private final File file;
+		private final long size;
+		private final long elapsedNanos;
+		private final String error;
+
+		private FileResult(File file, long elapsedNanos, String error) {
+			this.file = file;
+			this.size = file.length();
+			this.elapsedNanos = elapsedNanos;
+			this.error = error;
+		}
+
+		static FileResult ok(File file, long elapsedNanos) {
+			return new FileResult(file, elapsedNanos, null);
+		}
+
+		static FileResult failed(File file, long elapsedNanos, String error) {
+			return new FileResult(file, elapsedNanos, error);
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		void print(PrintStream out) {
+			long millis = elapsedNanos / 1_000_000;
+			if (isSuccess()) {
+				out.println("OK " + file + " (" + millis + " ms)");
+			} else {
+				out.println("FAILED " + file + " (" + millis + " ms): " + error);
+			}
+		}
+	}
+
+	public static class Result {
+		private final List<FileResult> files = new ArrayList<>();
+		private long elapsedNanos;
+
+		public List<FileResult> getFiles() {
+			return files;
+		}
+
+		void add(FileResult fileResult) {
+			files.add(fileResult);
+		}
+
+		void setElapsedNanos(long elapsedNanos) {
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public long getFailedCount() {
+			return files.stream().filter(f -> !f.isSuccess()).count();
+		}
+
+		public void printSummary(PrintStream out) {
+			long failed = getFailedCount();
+			long bytes = files.stream().mapToLong(f -> f.size).sum();
+			double seconds = elapsedNanos / 1e9;
+			out.println(String.format("Signed %d of %d files, failed %d, %.1f s",
+					files.size() - failed, files.size(), failed, seconds));
+			if (seconds > 0) {
+				out.println(String.format("Throughput: %.1f files/s, %.1f MB/s",
+						files.size() / seconds, bytes / seconds / (1024 * 1024)));
+			}
+			if (!files.isEmpty()) {
+				long[] latencies = files.stream().mapToLong(f -> f.elapsedNanos / 1_000_000).sorted().toArray();
+				out.println(String.format("Latency per file: median %d ms, 95%% %d ms, max %d ms",
+						percentile(latencies, 50), percentile(latencies, 95), latencies[latencies.length - 1]));
+			}
+		}
+
+		private static long percentile(long[] sorted, int percent) {
+			int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+			return sorted[Math.max(0, index)];
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.bouncycastle.cms.CMSSignerDigestMismatchException;
+import org.bouncycastle.cms.CMSVerifierCertificateNotValidException;
+
+/**
+ * Verify detached signatures of many files. Every file is paired with its .sig file.
+ * <p>
+ * Files are verified on work-stealing pool, results are written as they come, one line per file.
+ * Files with OK status are appended to checkpoint file, so interrupted run goes on from where it stopped.
+ * Files with other status are verified again by the next run.
+ */
+public class BulkVerifier {
+
+	// files are split till this size, then verified in one task
+	private static final int TASK_SIZE = 16;
+
+	public enum Status {
+		OK,
+		INVALID,
+		MISSING_SIG,
+		ERROR
+	}
+
+	public enum ReportFormat {
+		CSV,
+		JSON;
+
+		public static ReportFormat byName(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	private final int threads;
+	private final ReportFormat reportFormat;
+	private final File checkpointFile;
+	private final AtomicLong[] counters = new AtomicLong[Status.values().length];
+	// paths from checkpoint file, read once
+	private Set<String> verified;
+
+	/**
+	 * @param checkpointFile file with paths verified as OK, null to verify everything
+	 */
+	public BulkVerifier(int threads, ReportFormat reportFormat, File checkpointFile) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads should be positive: " + threads);
+		}
+		this.threads = threads;
+		this.reportFormat = reportFormat;
+		this.checkpointFile = checkpointFile;
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new AtomicLong();
+		}
+	}
+
+	public static boolean isBulk(CommandLine commandLine) {
+		return commandLine.hasOption(CliOptions.INPUT_DIR) || commandLine.hasOption(CliOptions.INPUT_LIST);
+	}
+
+	/**
+	 * Signed files from --input-dir (directory tree) and --input-list options.
+	 */
+	public static List<File> collectInputs(CommandLine commandLine) throws IOException {
+		List<File> files = new ArrayList<>();
+		if (commandLine.hasOption(CliOptions.INPUT_DIR)) {
+			files.addAll(BatchSigner.listDirectory(new File(commandLine.getOptionValue(CliOptions.INPUT_DIR))));
+		}
+		if (commandLine.hasOption(CliOptions.INPUT_LIST)) {
+			files.addAll(BatchSigner.listManifest(new File(commandLine.getOptionValue(CliOptions.INPUT_LIST))));
+		}
+		return files;
+	}
+
+	/**
+	 * @return true if checkpoint has files verified by previous run
+	 */
+	public boolean isResumed() throws IOException {
+		return !getVerified().isEmpty();
+	}
+
+	/**
+	 * @param report destination for result lines
+	 * @return number of files that are not OK
+	 */
+	public long verify(List<File> files, PrintStream report) throws IOException {
+		Set<String> verified = getVerified();
+		List<File> toVerify = new ArrayList<>();
+		for (File file : files) {
+			if (!verified.contains(file.getPath())) {
+				toVerify.add(file);
+			}
+		}
+		// report may go to standard output, so messages go to error output
+		long skipped = files.size() - toVerify.size();
+		if (skipped > 0) {
+			System.err.println("Skipped by checkpoint: " + skipped);
+		}
+		if (reportFormat == ReportFormat.CSV && verified.isEmpty()) {
+			report.println("status,file,millis,message");
+		}
+
+		long start = System.nanoTime();
+		try (PrintWriter checkpoint = checkpointFile == null
+				? null
+				: new PrintWriter(new FileWriter(checkpointFile, true))) {
+			ResultWriter writer = new ResultWriter(report, checkpoint);
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new VerifyTask(toVerify, 0, toVerify.size(), writer));
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long failed = 0;
+		StringBuilder summary = new StringBuilder();
+		for (Status status : Status.values()) {
+			long count = counters[status.ordinal()].get();
+			if (status != Status.OK) {
+				failed += count;
+			}
+			summary.append(status).append(' ').append(count).append(", ");
+		}
+		System.err.println(String.format("Verified %d files: %s%.1f s", toVerify.size(), summary, seconds));
+		if (seconds > 0) {
+			System.err.println(String.format("Throughput: %.1f files/s", toVerify.size() / seconds));
+		}
+		VerifierCache verifierCache = Verify.getVerifierCache();
+		System.err.println(String.format("Verifier cache: %d hits, %d misses",
+				verifierCache.getHits(), verifierCache.getMisses()));
+		return failed;
+	}
+
+	private synchronized Set<String> getVerified() throws IOException {
+		if (verified == null) {
+			verified = readCheckpoint();
+		}
+		return verified;
+	}
+
+	private Set<String> readCheckpoint() throws IOException {
+		Set<String> verified = new HashSet<>();
+		if (checkpointFile == null || !checkpointFile.exists()) {
+			return verified;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(checkpointFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					verified.add(line);
+				}
+			}
+		}
+		return verified;
+	}
+
+	private FileResult verifyFile(File file) {
+		long start = System.nanoTime();
+		File sigFile = new File(file.getParent(), file.getName() + ".sig");
+		if (!sigFile.isFile()) {
+			return new FileResult(file, Status.MISSING_SIG, System.nanoTime() - start, null);
+		}
+		try {
+			boolean valid = Verify.verifyDetached(file, sigFile);
+			return new FileResult(file, valid ? Status.OK : Status.INVALID, System.nanoTime() - start, null);
+		} catch (CMSSignerDigestMismatchException | CMSVerifierCertificateNotValidException e) {
+			return new FileResult(file, Status.INVALID, System.nanoTime() - start, e.getMessage());
+		} catch (Exception e) {
+			return new FileResult(file, Status.ERROR, System.nanoTime() - start, String.valueOf(e.getMessage()));
+		}
+	}
+
+	private class VerifyTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<File> files;
+		private final int from;
+		private final int to;
+		private final ResultWriter writer;
+
+		VerifyTask(List<File> files, int from, int to, ResultWriter writer) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+			this.writer = writer;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= TASK_SIZE) {
+				for (int i = from; i < to; i++) {
+					FileResult result = verifyFile(files.get(i));
+					counters[result.status.ordinal()].incrementAndGet();
+					writer.write(result);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new VerifyTask(files, from, middle, writer), new VerifyTask(files, middle, to, writer));
+		}
+	}
+
+	private class ResultWriter {
+		private final PrintStream report;
+		private final PrintWriter checkpoint;
+
+		ResultWriter(PrintStream report, PrintWriter checkpoint) {
+			this.report = report;
+			this.checkpoint = checkpoint;
+		}
+
+		synchronized void write(FileResult result) {
+			report.println(reportFormat == ReportFormat.JSON ? result.toJson() : result.toCsv());
+			report.flush();
+			if (checkpoint != null && result.status == Status.OK) {
+				// line in checkpoint only after the result is in report
+				checkpoint.println(result.file.getPath());
+				checkpoint.flush();
+			}
+		}
+	}
+
+	private static class FileResult {
+		private final File file;
+		private final Status status;
+		private final long elapsedNanos;
+		private final String message;
+
+		FileResult(File file, Status status, long elapsedNanos, String message) {
+			this.file = file;
+			this.status = status;
+			this.elapsedNanos = elapsedNanos;
+			this.message = message;
+		}
+
+		String toCsv() {
+			return status + "," + csv(file.getPath()) + "," + elapsedNanos / 1_000_000 + ","
+					+ (message == null ? "" : csv(message));
+		}
+
+		String toJson() {
+			return "{\"status\":\"" + status + "\",\"file\":" + json(file.getPath())
+					+ ",\"millis\":" + elapsedNanos / 1_000_000
+					+ ",\"message\":" + (message == null ? "null" : json(message)) + "}";
+		}
+
+		private static String csv(String value) {
+			if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+				return value;
+			}
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		}
+
+		private static String json(String value) {
+			StringBuilder sb = new StringBuilder("\"");
+			for (char c : value.toCharArray()) {
+				switch (c) {
+					case '"':
+						sb.append("\\\"");
+						break;
+					case '\\':
+						sb.append("\\\\");
+						break;
+					case '\n':
+						sb.append("\\n");
+						break;
+					case '\r':
+						sb.append("\\r");
+						break;
+					case '\t':
+						sb.append("\\t");
+						break;
+					default:
+						if (c < 0x20) {
+							sb.append(String.format("\\u%04x", (int) c));
+						} else {
+							sb.append(c);
+						}
+				}
+			}
+			return sb.append('"').toString();
+		}
+	}
+}
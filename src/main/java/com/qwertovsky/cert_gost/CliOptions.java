@@ -1,13 +1,28 @@
 package com.qwertovsky.cert_gost;
 
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+
 public interface CliOptions {
 	
 	static final String DATE = "date";
 	static final String INPUT = "input";
+	static final String INPUT_DIR = "input-dir";
+	static final String INPUT_GLOB = "input-glob";
+	static final String INPUT_LIST = "input-list";
+	static final String THREADS = "threads";
+	static final String OUTPUT_DIR = "output-dir";
+	static final String SELF_VERIFY = "self-verify";
 	static final String HELP = "help";
 	static final String PKCS_ID = "pkcs-id";
 	static final String CERT_FILE = "cert-file";
 	static final String PKCS_LIBRARY = "pkcs-library";
+	static final String PKCS_SESSIONS = "pkcs-sessions";
+	static final String PKCS_SERIAL = "pkcs-serial";
+	static final String PKCS_ALL_TOKENS = "pkcs-all-tokens";
+	static final String PKCS_BALANCING = "pkcs-balancing";
+	static final String PKCS_TOKEN_DIGEST = "pkcs-token-digest";
+	static final String PKCS_CACHE = "pkcs-cache";
 	static final String PFX_FILE = "pfx-file";
 	static final String PFX_ALIAS = "pfx-alias";
 	static final String ATTACHED = "attached";
@@ -23,6 +38,7 @@ public interface CliOptions {
 	static final String PDF_HEIGHT = "pdf-height";
 	static final String PDF_IMAGE = "pdf-image";
 	static final String PDF_IMAGE_SCALE = "pdf-image-scale";
+	static final String PDF_LOW_MEMORY = "pdf-low-memory";
 	
 	static final String PFX_CREATE = "pfx-create";
 	static final String KEY_FILE = "key-file";
@@ -30,4 +46,45 @@ public interface CliOptions {
 	
 	static final String VERIFY = "verify";
 	static final String SIG_FILE = "sig-file";
+	static final String REPORT = "report";
+	static final String REPORT_FORMAT = "report-format";
+	static final String CHECKPOINT = "checkpoint";
+	
+	static final String SERVER = "server";
+	static final String SERVER_PORT = "server-port";
+	static final String SERVER_THREADS = "server-threads";
+	static final String SERVER_TOKEN_FILE = "server-token-file";
+	
+	/**
+	 * Options of batch input shared by signing and verification
+	 */
+	static Options createBatchOptions() {
+		Options cliOptions = new Options();
+		
+		Option inDirOption = Option.builder()
+				.longOpt(INPUT_DIR)
+				.argName("./dir")
+				.desc("Every file in directory and subdirectories (.sig files are skipped)")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(inDirOption);
+		
+		Option inListOption = Option.builder()
+				.longOpt(INPUT_LIST)
+				.argName("./files.txt")
+				.desc("Every file listed in manifest file (one path per line)")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(inListOption);
+		
+		Option threadsOption = Option.builder()
+				.longOpt(THREADS)
+				.argName("4")
+				.desc("Number of threads to sign or verify files")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(threadsOption);
+		
+		return cliOptions;
+	}
 }
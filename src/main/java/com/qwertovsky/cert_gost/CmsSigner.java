@@ -1,9 +1,12 @@
 package com.qwertovsky.cert_gost;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Hashtable;
 
@@ -15,42 +18,149 @@ import org.bouncycastle.asn1.cms.CMSAttributes;
 import org.bouncycastle.asn1.cms.Time;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSAbsentContent;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataGenerator;
 import org.bouncycastle.cms.CMSTypedData;
 import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
 import org.bouncycastle.cms.SignerInfoGenerator;
-import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.SignerInfoGeneratorBuilder;
 import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
 import org.bouncycastle.operator.DigestCalculator;
 import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.util.CollectionStore;
+import org.bouncycastle.util.Store;
 import org.bouncycastle.util.io.Streams;
 
 import com.qwertovsky.cert_gost.store.GostStore;
 
 
+/**
+ * Create CMS signatures with the store.
+ * <p>
+ * Certificate, its chain and algorithms are taken from the store once at construction,
+ * create new signer if certificate of the store is changed.
+ * Signing methods may be called from several threads at once if the store is thread safe.
+ */
 public class CmsSigner {
 	
-	private Clock clock = Clock.systemDefaultZone();
+	private static final int MAPPED_SLICE_SIZE = 1024 * 1024;
+	
+	private volatile Clock clock = Clock.systemDefaultZone();
 	
 	private final GostStore store;
+	private final AlgorithmIdentifier signatureAlgorithm;
+	private final AlgorithmIdentifier digestAlgorithm;
+	private final X509CertificateHolder certificateHolder;
+	private final Store<X509CertificateHolder> certificates;
+	private final DigestCalculatorProvider storeDigestCalculatorProvider;
 	
-	public CmsSigner(GostStore store) {
+	public CmsSigner(GostStore store) throws Exception {
 		this.store = store;
+		this.signatureAlgorithm = store.getSignatureAlgorithm();
+		try {
+			this.digestAlgorithm = new DefaultDigestAlgorithmIdentifierFinder().find(signatureAlgorithm);
+		} catch (Exception e) {
+			throw new OperatorCreationException("Signature algorithm not found", e);
+		}
+		this.certificateHolder = store.getCertificateHolder();
+		this.certificates = new CollectionStore<>(new ArrayList<>(store.getCertChain()));
+		this.storeDigestCalculatorProvider = new DigestCalculatorProvider() {
+			@Override
+			public DigestCalculator get(AlgorithmIdentifier digestAlgorithmIdentifier)
+					throws OperatorCreationException {
+				return createDigestCalculator(digestAlgorithmIdentifier);
+			}
+		};
 	}
 
 	public byte[] sign(InputStream is, Instant signingTime, boolean encapsulate) throws Exception {
+		if (!encapsulate) {
+			// detached signature needs only the content digest - don't keep the content in memory
+			byte[] contentDigest = calculateDigest(is);
+			return signDigest(contentDigest, signingTime);
+		}
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
         Streams.pipeAll(is, baos, 32 * 1024);
         CMSTypedData cmsData = new CMSProcessableByteArray(baos.toByteArray());
 
+        return generate(cmsData, signingTime, true, storeDigestCalculatorProvider);
+	}
+	
+	/**
+	 * Sign file. Detached signature reads the file through memory mapping.
+	 */
+	public byte[] sign(File file, Instant signingTime, boolean encapsulate) throws Exception {
+		if (!encapsulate) {
+			byte[] contentDigest = calculateDigest(file);
+			return signDigest(contentDigest, signingTime);
+		}
+		try (FileInputStream fis = new FileInputStream(file)) {
+			return sign(fis, signingTime, true);
+		}
+	}
+	
+	/**
+	 * Digest content in one pass. The result can be signed later with {@link #signDigest(byte[], Instant)}.
+	 */
+	public byte[] calculateDigest(InputStream is) throws Exception {
+		return calculateDigest(is, 32 * 1024);
+	}
+	
+	/**
+	 * Digest file mapped into memory, it is given to digest in large slices.
+	 */
+	public byte[] calculateDigest(File file) throws Exception {
+		try (MappedFileInputStream is = new MappedFileInputStream(file)) {
+			return calculateDigest(is, MAPPED_SLICE_SIZE);
+		}
+	}
+	
+	private byte[] calculateDigest(InputStream is, int bufferSize) throws Exception {
+		DigestCalculator digestCalculator = createDigestCalculator(digestAlgorithm);
+		try {
+			Streams.pipeAll(is, digestCalculator.getOutputStream(), bufferSize);
+		} catch (Exception e) {
+			// finish digest operation, token digest holds the session till the end
+			try {
+				digestCalculator.getDigest();
+			} catch (Exception finalException) {
+				e.addSuppressed(finalException);
+			}
+			throw e;
+		}
+		return digestCalculator.getDigest();
+	}
+	
+	/**
+	 * Create detached signature for content digest.
+	 * @param contentDigest digest calculated by {@link #calculateDigest(InputStream)}
+	 */
+	public byte[] signDigest(byte[] contentDigest, Instant signingTime) throws Exception {
+		DigestCalculatorProvider digestCalculatorProvider = new DigestCalculatorProvider() {
+			@Override
+			public DigestCalculator get(AlgorithmIdentifier digestAlgorithmIdentifier)
+					throws OperatorCreationException {
+				if (!digestAlgorithmIdentifier.getAlgorithm().equals(digestAlgorithm.getAlgorithm())) {
+					throw new OperatorCreationException("Digest not found: " + digestAlgorithmIdentifier.getAlgorithm());
+				}
+				return new PrecomputedDigestCalculator(digestAlgorithmIdentifier, contentDigest);
+			}
+		};
+		return generate(new CMSAbsentContent(), signingTime, false, digestCalculatorProvider);
+	}
+	
+	private byte[] generate(CMSTypedData cmsData, Instant signingTime, boolean encapsulate,
+			DigestCalculatorProvider digestCalculatorProvider) throws Exception {
         CMSSignedDataGenerator cmsGenerator = new CMSSignedDataGenerator();
         
+        // content signer collects signed attributes, so it is created for every signature
         ContentSigner contentSigner = new ByteArrayContentSigner(
-        		this.store.getSignatureAlgorithm(),
+        		signatureAlgorithm,
         		t -> {
 					try {
 						return store.signRaw(t);
@@ -59,21 +169,7 @@ public class CmsSigner {
 					}
 				});
         
-        JcaSignerInfoGeneratorBuilder jcaSignerInfoGeneratorBuilder = new JcaSignerInfoGeneratorBuilder(
-        		new DigestCalculatorProvider() {
-					@Override
-					public DigestCalculator get(AlgorithmIdentifier digestAlgorithmIdentifier)
-							throws OperatorCreationException {
-						Digest digest;
-						try {
-							digest = store.getDigest(digestAlgorithmIdentifier);
-							StreamDigestCalculator digestCalculator = new StreamDigestCalculator(digest);
-							return digestCalculator;
-						} catch (Exception e) {
-							throw new OperatorCreationException("Digest not found", e);
-						}
-					}
-        });
+        SignerInfoGeneratorBuilder signerInfoGeneratorBuilder = new SignerInfoGeneratorBuilder(digestCalculatorProvider);
         
         Hashtable<ASN1ObjectIdentifier, Attribute> attributesHashTable = new Hashtable<>();
         if (signingTime == null) {
@@ -84,20 +180,29 @@ public class CmsSigner {
         attributesHashTable.put(attr.getAttrType(), attr);
         
         DefaultSignedAttributeTableGenerator signedAttributeTableGenerator = new DefaultSignedAttributeTableGenerator(new AttributeTable(attributesHashTable));
-        jcaSignerInfoGeneratorBuilder.setSignedAttributeGenerator(signedAttributeTableGenerator);
-		X509CertificateHolder certificateHolder = this.store.getCertificateHolder();
-		SignerInfoGenerator signerInfoGenerator = jcaSignerInfoGeneratorBuilder.build(contentSigner, certificateHolder);
+        signerInfoGeneratorBuilder.setSignedAttributeGenerator(signedAttributeTableGenerator);
+		SignerInfoGenerator signerInfoGenerator = signerInfoGeneratorBuilder.build(contentSigner, certificateHolder);
 
 		cmsGenerator.addSignerInfoGenerator(signerInfoGenerator);
-        for (X509CertificateHolder cert : this.store.getCertChain()) {
-        	cmsGenerator.addCertificate(cert);
-        }
+		cmsGenerator.addCertificates(certificates);
         
         CMSSignedData cms = cmsGenerator.generate(cmsData, encapsulate);
         byte[] signature = cms.getEncoded();
 		return signature;
 	}
 	
+	private DigestCalculator createDigestCalculator(AlgorithmIdentifier digestAlgorithmIdentifier)
+			throws OperatorCreationException {
+		Digest digest;
+		try {
+			digest = store.getDigest(digestAlgorithmIdentifier);
+			StreamDigestCalculator digestCalculator = new StreamDigestCalculator(digest);
+			return digestCalculator;
+		} catch (Exception e) {
+			throw new OperatorCreationException("Digest not found", e);
+		}
+	}
+	
 	public void setClock(Clock clock) {
 		this.clock = clock;
 	}
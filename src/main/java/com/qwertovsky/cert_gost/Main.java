@@ -2,11 +2,14 @@ package com.qwertovsky.cert_gost;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.Provider;
 import java.security.Security;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.commons.cli.CommandLine;
@@ -19,16 +22,18 @@ import org.apache.commons.cli.Options;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import com.qwertovsky.cert_gost.store.GostStore;
+import com.qwertovsky.cert_gost.store.MultiTokenStore;
 import com.qwertovsky.cert_gost.store.PfxStore;
+import com.qwertovsky.cert_gost.store.PkcsCache;
+import com.qwertovsky.cert_gost.store.PkcsSessionPool;
 import com.qwertovsky.cert_gost.store.PkcsStore;
 import com.qwertovsky.cert_gost.store.StoreType;
 import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
 
-import ru.rutoken.pkcs11jna.Pkcs11;
 import ru.rutoken.pkcs11jna.Pkcs11Constants;
-import ru.rutoken.pkcs11jna.RtPkcs11;
 import ru.rutoken.samples.pkcs11utils.Pkcs11Operations;
+import ru.rutoken.samples.pkcs11utils.RtPkcs11Memory;
 
 public class Main {
 
@@ -64,16 +69,29 @@ public class Main {
 			return;
 		}
 
-		String fileToSigPath = commandLine.getOptionValue(CliOptions.INPUT);
-		if (fileToSigPath == null) {
-			System.err.println("File input is required");
-			printHelp(cliOptions);
-			return;
-		}
-		File fileToSig = new File(fileToSigPath);
-		if (!fileToSig.exists()) {
-			System.err.println("File input not found");
-			return;
+		File fileToSig = null;
+		List<File> batchFiles = null;
+		boolean server = commandLine.hasOption(CliOptions.SERVER);
+		if (server) {
+			// documents come with requests
+		} else if (BatchSigner.isBatch(commandLine)) {
+			batchFiles = BatchSigner.collectInputs(commandLine);
+			if (batchFiles.isEmpty()) {
+				System.err.println("No input files found");
+				return;
+			}
+		} else {
+			String fileToSigPath = commandLine.getOptionValue(CliOptions.INPUT);
+			if (fileToSigPath == null) {
+				System.err.println("File input is required");
+				printHelp(cliOptions);
+				return;
+			}
+			fileToSig = new File(fileToSigPath);
+			if (!fileToSig.exists()) {
+				System.err.println("File input not found");
+				return;
+			}
 		}
 		
 		Security.setProperty("crypto.policy", "unlimited");
@@ -84,10 +102,14 @@ public class Main {
 		
 	    
 		
-		Pkcs11 pkcs11 = null;
+		RtPkcs11Memory pkcs11 = null;
         NativeLong pkcsSession = null;
+        PkcsSessionPool pkcsSessionPool = null;
+        MultiTokenStore multiTokenStore = null;
         try {
 	        GostStore store = null;
+	        // operations the store can sign at once, 0 if it is limited by CPU only
+	        int storeSessions = 0;
 	        
 	        StoreType storeType = null;
 		    if (commandLine.hasOption(CliOptions.PFX_FILE)) {
@@ -115,16 +137,51 @@ public class Main {
 			                libraryPath = props.getProperty("library");
 			        	}
 		        	}
-		        	pkcs11 = Native.load(libraryPath, RtPkcs11.class);
-		            pkcsSession = new NativeLong(Pkcs11Constants.CK_INVALID_HANDLE);
-		            Pkcs11Operations.initializePkcs11AndLoginToFirstToken(pkcs11, pkcsSession, String.valueOf(pinChars).getBytes());
+		        	pkcs11 = Native.load(libraryPath, RtPkcs11Memory.class);
+		            int sessions = Integer.parseInt(commandLine.getOptionValue(CliOptions.PKCS_SESSIONS, "1"));
 		            String certId = commandLine.getOptionValue(CliOptions.PKCS_ID);
+		            PkcsCache pkcsCache = commandLine.hasOption(CliOptions.PKCS_CACHE)
+		            		? PkcsCache.load(new File(commandLine.getOptionValue(CliOptions.PKCS_CACHE)))
+		            		: null;
+		            if (commandLine.hasOption(CliOptions.PKCS_SERIAL) || commandLine.hasOption(CliOptions.PKCS_ALL_TOKENS)) {
+		            	List<String> serials = new ArrayList<>();
+		            	if (commandLine.hasOption(CliOptions.PKCS_SERIAL)) {
+		            		for (String serial : commandLine.getOptionValue(CliOptions.PKCS_SERIAL).split(",")) {
+		            			serials.add(serial.trim());
+		            		}
+		            	}
+		            	MultiTokenStore.Balancing balancing = MultiTokenStore.Balancing.byName(
+		            			commandLine.getOptionValue(CliOptions.PKCS_BALANCING, "round-robin"));
+		            	String certPath = commandLine.getOptionValue(CliOptions.CERT_FILE);
+		            	Pkcs11Operations.initializePkcs11(pkcs11);
+		            	try {
+		            		multiTokenStore = MultiTokenStore.open(pkcs11, serials, String.valueOf(pinChars).getBytes(),
+		            				certId, certPath == null ? null : new File(certPath), sessions, balancing, pkcsCache);
+		            	} catch (Exception e) {
+		            		Pkcs11Operations.finalizePkcs11(pkcs11);
+		            		throw e;
+		            	}
+		            	multiTokenStore.setTokenDigest(commandLine.hasOption(CliOptions.PKCS_TOKEN_DIGEST));
+		            	storeSessions = sessions * multiTokenStore.getSerials().size();
+		            	store = multiTokenStore;
+		            	break;
+		            }
+		            pkcsSession = new NativeLong(Pkcs11Constants.CK_INVALID_HANDLE);
+		            NativeLong slot = Pkcs11Operations.initializePkcs11AndLoginToFirstToken(pkcs11, pkcsSession, String.valueOf(pinChars).getBytes());
+		            pkcsSessionPool = new PkcsSessionPool(pkcs11, slot, pkcsSession, sessions);
+		            String serial = pkcsCache == null ? null
+		            		: Pkcs11Operations.getTokenSerial(
+		            				Pkcs11Operations.getTokenInfos(pkcs11, new NativeLong[] {slot}).get(0));
+		            PkcsStore pkcsStore;
 		            if (certId != null) {
-		            	store = new PkcsStore(pkcs11, pkcsSession, certId);
+		            	pkcsStore = new PkcsStore(pkcs11, pkcsSessionPool, certId, pkcsCache, serial);
 		            } else {
 		            	String certPath = commandLine.getOptionValue(CliOptions.CERT_FILE);
-		            	store = new PkcsStore(pkcs11, pkcsSession, new File(certPath));
+		            	pkcsStore = new PkcsStore(pkcs11, pkcsSessionPool, new File(certPath), pkcsCache, serial);
 		            }
+		            pkcsStore.setTokenDigest(commandLine.hasOption(CliOptions.PKCS_TOKEN_DIGEST));
+		            store = pkcsStore;
+		            storeSessions = sessions;
 		            
 		            break;
 		        }
@@ -143,15 +200,46 @@ public class Main {
     		if (commandLine.hasOption(CliOptions.DATE)) {
     			date = Instant.parse(commandLine.getOptionValue(CliOptions.DATE));
     		}
+    		
+    		if (server) {
+    			runServer(commandLine, store, cmsSigner);
+    			return;
+    		}
+    		
+    		if (batchFiles != null) {
+    			int threads = Integer.parseInt(commandLine.getOptionValue(CliOptions.THREADS, "1"));
+    			if (threads > 1 && !store.isThreadSafe()) {
+    				System.out.println("The store can't sign in parallel, using 1 thread");
+    				threads = 1;
+    			}
+    			if (commandLine.hasOption(CliOptions.PDF)) {
+    				signPdfBatch(commandLine, store, cmsSigner, batchFiles, date, threads);
+    				return;
+    			}
+    			System.out.println("Creating CMS signatures for " + batchFiles.size() + " files");
+    			if (store.isThreadSafe() && !commandLine.hasOption(CliOptions.ATTACHED)
+    					&& !commandLine.hasOption(CliOptions.PKCS_TOKEN_DIGEST)) {
+    				// token signs while other files are hashed on host
+    				SignPipeline pipeline = new SignPipeline(cmsSigner, threads,
+    						storeSessions > 0 ? storeSessions : threads, createVerifyPolicy(commandLine));
+    				BatchSigner.Result result = pipeline.sign(batchFiles, date, System.out);
+    				result.printSummary(System.out);
+    				pipeline.printStages(System.out);
+    				return;
+    			}
+    			BatchSigner batchSigner = new BatchSigner(cmsSigner, threads, createVerifyPolicy(commandLine));
+    			BatchSigner.Result result = batchSigner.sign(batchFiles, date,
+    					commandLine.hasOption(CliOptions.ATTACHED), System.out);
+    			result.printSummary(System.out);
+    			return;
+    		}
 
             System.out.println("Creating CMS signature as SIG file");
-            File fileSig = new File(fileToSig.getParent(), fileToSig.getName() + ".sig");
-	        try (FileInputStream fis = new FileInputStream(fileToSig);
-	        		FileOutputStream sigFos = new FileOutputStream(fileSig);) {
-		        byte[] sign = cmsSigner.sign(fis, date, commandLine.hasOption(CliOptions.ATTACHED));
-		        sigFos.write(sign);
-	        }
-	        System.out.println("Sig: " + Verify.verifyDetached(fileToSig));
+            Boolean verified = new BatchSigner(cmsSigner, 1, createVerifyPolicy(commandLine))
+            		.signAndVerify(fileToSig, date, commandLine.hasOption(CliOptions.ATTACHED));
+            if (verified != null) {
+            	System.out.println("Sig: " + verified);
+            }
 	        
 	        boolean pdfAttached = commandLine.hasOption(CliOptions.PDF);
 			if (pdfAttached) {
@@ -163,15 +251,86 @@ public class Main {
             System.err.println("Program has failed:");
             e.printStackTrace();
         } finally {
+        	if (pkcsSessionPool != null) {
+        		pkcsSessionPool.close();
+        	}
         	if (pkcsSession != null) {
         		Pkcs11Operations.logoutAndFinalizePkcs11Library(pkcs11, pkcsSession);
         	}
+        	if (multiTokenStore != null) {
+        		multiTokenStore.close();
+        		Pkcs11Operations.finalizePkcs11(pkcs11);
+        	}
         }
 			
 	}
 
+	private static void runServer(CommandLine commandLine, GostStore store, CmsSigner cmsSigner) throws Exception {
+		int port = Integer.parseInt(commandLine.getOptionValue(CliOptions.SERVER_PORT,
+				String.valueOf(SignServer.PORT_DEFAULT)));
+		int threads = Integer.parseInt(commandLine.getOptionValue(CliOptions.SERVER_THREADS,
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		String accessToken;
+		if (commandLine.hasOption(CliOptions.SERVER_TOKEN_FILE)) {
+			accessToken = Files.readAllLines(Paths.get(commandLine.getOptionValue(CliOptions.SERVER_TOKEN_FILE)))
+					.stream().findFirst().orElse("").strip();
+		} else {
+			accessToken = SignServer.generateAccessToken();
+			System.out.println("Access token: " + accessToken);
+		}
+		SignServer signServer = new SignServer(store, cmsSigner, port, threads, accessToken);
+		signServer.start();
+		System.out.println("Server is listening on " + signServer.getAddress());
+		
+		// let main thread log out from token before JVM exits
+		Thread mainThread = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			signServer.stop();
+			try {
+				mainThread.join(10_000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+		signServer.awaitStop();
+	}
+
 	private static void signPdf(CommandLine commandLine, GostStore store, CmsSigner cmsSigner, File fileToSig, Instant date)
 			throws IOException, Exception {
+		try (PdfSigner pdfSigner = createPdfSignerBuilder(commandLine, store, cmsSigner, date).build()) {
+			PdfSignResult result = pdfSigner.sign(fileToSig);
+			System.out.println(result);
+			if (result.isVerified() != null) {
+				System.out.println("Pdf: " + result.isVerified());
+			}
+		}
+	}
+
+	private static void signPdfBatch(CommandLine commandLine, GostStore store, CmsSigner cmsSigner,
+			List<File> files, Instant date, int threads) throws Exception {
+		List<File> documents = BatchPdfSigner.selectDocuments(files);
+		if (documents.size() < files.size()) {
+			System.out.println("Skipped not PDF and signed files: " + (files.size() - documents.size()));
+		}
+		if (documents.isEmpty()) {
+			System.err.println("No PDF documents found");
+			return;
+		}
+		System.out.println("Creating PDF signatures for " + documents.size() + " files");
+		String outputPath = commandLine.getOptionValue(CliOptions.OUTPUT_DIR);
+		// peak heap of one document is not known when documents are signed in parallel
+		try (PdfSigner pdfSigner = createPdfSignerBuilder(commandLine, store, cmsSigner, date)
+				.peakHeap(threads == 1)
+				.build()) {
+			BatchPdfSigner batchPdfSigner = new BatchPdfSigner(pdfSigner, threads,
+					outputPath == null ? null : new File(outputPath));
+			BatchSigner.Result result = batchPdfSigner.sign(documents, System.out);
+			result.printSummary(System.out);
+		}
+	}
+
+	private static PdfSigner.Builder createPdfSignerBuilder(CommandLine commandLine, GostStore store,
+			CmsSigner cmsSigner, Instant date) throws Exception {
 		String reason = commandLine.getOptionValue(CliOptions.REASON);
 		String location = commandLine.getOptionValue(CliOptions.LOCATION);
 		boolean pdfVisual = commandLine.hasOption(CliOptions.PDF_VISUAL);
@@ -197,8 +356,17 @@ public class Main {
 					.imageFile(new File(imagePath))
 					.imageScale(imageScale);
 		}
-		PdfSigner pdfSigner = pdfSignerBuilder.build();
-		pdfSigner.sign(fileToSig);
+		if (commandLine.hasOption(CliOptions.PDF_LOW_MEMORY)) {
+			long maxMainMemoryMb = Long.parseLong(commandLine.getOptionValue(CliOptions.PDF_LOW_MEMORY, "-1"));
+			pdfSignerBuilder = pdfSignerBuilder
+					.lowMemory(true)
+					.maxMainMemory(maxMainMemoryMb < 0 ? -1 : maxMainMemoryMb * 1024 * 1024);
+		}
+		return pdfSignerBuilder.verifyPolicy(createVerifyPolicy(commandLine));
+	}
+
+	private static VerifyPolicy createVerifyPolicy(CommandLine commandLine) {
+		return VerifyPolicy.parse(commandLine.getOptionValue(CliOptions.SELF_VERIFY, "full"));
 	}
 
 	private static Options createOptions() {
@@ -220,6 +388,32 @@ public class Main {
 				.build();
 		cliOptions.addOption(inOption);
 		
+		CliOptions.createBatchOptions().getOptions().forEach(cliOptions::addOption);
+		
+		Option inGlobOption = Option.builder()
+				.longOpt(CliOptions.INPUT_GLOB)
+				.argName("./dir/**/*.pdf")
+				.desc("Sign every file matching glob pattern")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(inGlobOption);
+		
+		Option outDirOption = Option.builder()
+				.longOpt(CliOptions.OUTPUT_DIR)
+				.argName("./signed")
+				.desc("Directory for signed PDF documents in batch mode")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(outDirOption);
+		
+		Option selfVerifyOption = Option.builder()
+				.longOpt(CliOptions.SELF_VERIFY)
+				.argName("full|memory|off|10%")
+				.desc("Verify signatures after signing: every file from disk, every signature in memory, none or percent of files")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(selfVerifyOption);
+		
 		Option dateOption = Option.builder()
 				.option("d")
 				.longOpt(CliOptions.DATE)
@@ -254,6 +448,50 @@ public class Main {
 				.build();
 		cliOptions.addOption(pkcsLibraryOption);
 		
+		Option pkcsSessionsOption = Option.builder()
+				.longOpt(CliOptions.PKCS_SESSIONS)
+				.argName("1")
+				.desc("Number of sessions opened on token. Concurrent signatures use own sessions")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(pkcsSessionsOption);
+		
+		Option pkcsSerialOption = Option.builder()
+				.longOpt(CliOptions.PKCS_SERIAL)
+				.argName("serial1,serial2")
+				.desc("Serial numbers of tokens to sign with. Signatures are spread across the tokens")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(pkcsSerialOption);
+		
+		Option pkcsAllTokensOption = Option.builder()
+				.longOpt(CliOptions.PKCS_ALL_TOKENS)
+				.desc("Sign with every token that holds the certificate")
+				.build();
+		cliOptions.addOption(pkcsAllTokensOption);
+		
+		Option pkcsBalancingOption = Option.builder()
+				.longOpt(CliOptions.PKCS_BALANCING)
+				.argName("round-robin|least-loaded")
+				.desc("How signatures are spread across tokens")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(pkcsBalancingOption);
+		
+		Option pkcsTokenDigestOption = Option.builder()
+				.longOpt(CliOptions.PKCS_TOKEN_DIGEST)
+				.desc("Calculate digest on token. By default only the digest is sent to token")
+				.build();
+		cliOptions.addOption(pkcsTokenDigestOption);
+		
+		Option pkcsCacheOption = Option.builder()
+				.longOpt(CliOptions.PKCS_CACHE)
+				.argName("./file_path")
+				.desc("File to keep certificate, chain and key id found on token. The next run finds only the key")
+				.hasArg(true)
+				.build();
+		cliOptions.addOption(pkcsCacheOption);
+		
 		Option pfxFileOption = Option.builder()
 				.longOpt(CliOptions.PFX_FILE)
 				.argName("./file_path.pfx")
@@ -380,8 +618,18 @@ public class Main {
 		cliOptions.addOption(pdfImageScaleOption);
 		pdfVisualOG.addOption(pdfImageScaleOption);
 		
+		Option pdfLowMemoryOption = Option.builder()
+				.longOpt(CliOptions.PDF_LOW_MEMORY)
+				.hasArg(true)
+				.optionalArg(true)
+				.argName("64")
+				.desc("Keep PDF document in temporary file. Optional megabytes of heap for document")
+				.build();
+		cliOptions.addOption(pdfLowMemoryOption);
+		
 		PfxCreator.createOptions().getOptions().forEach(cliOptions::addOption);
 		Verify.createOptions().getOptions().forEach(cliOptions::addOption);
+		SignServer.createOptions().getOptions().forEach(cliOptions::addOption);
 		
 		return cliOptions;
 	}
@@ -0,0 +1,78 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read file through memory mapping. The file is mapped by windows of {@link #WINDOW_SIZE} bytes,
+ * read(byte[]) copies from the page cache without read system call.
+ * <p>
+ * Mapped windows are released by garbage collector.
+ */
+public class MappedFileInputStream extends InputStream {
+
+	static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final long size;
+	private long windowPosition = 0;
+	private MappedByteBuffer window;
+
+	public MappedFileInputStream(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.size = channel.size();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextWindow()) {
+			return -1;
+		}
+		return window.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextWindow()) {
+			return -1;
+		}
+		int n = Math.min(len, window.remaining());
+		window.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		long available = size - windowPosition + (window == null ? 0 : window.remaining());
+		return (int) Math.min(Integer.MAX_VALUE, available);
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+
+	/**
+	 * @return false at the end of file
+	 */
+	private boolean nextWindow() throws IOException {
+		if (window != null && window.hasRemaining()) {
+			return true;
+		}
+		if (windowPosition >= size) {
+			return false;
+		}
+		long windowSize = Math.min(WINDOW_SIZE, size - windowPosition);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowPosition, windowSize);
+		windowPosition += windowSize;
+		return true;
+	}
+}
@@ -0,0 +1,144 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signed PDF file with time and memory of signing.
+ */
+public class PdfSignResult {
+
+	private final File signedFile;
+	private final long elapsedMillis;
+	private final long peakHeapBytes;
+	private final long allocatedBytes;
+	private Boolean verified;
+
+	PdfSignResult(File signedFile, long elapsedMillis, long peakHeapBytes, long allocatedBytes) {
+		this.signedFile = signedFile;
+		this.elapsedMillis = elapsedMillis;
+		this.peakHeapBytes = peakHeapBytes;
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	public File getSignedFile() {
+		return signedFile;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Upper bound of heap used while document was signed, -1 if it was not measured
+	 * or another document was signed at the same time.
+	 * Heap and its peak are shared by the whole JVM, the value is valid only if nothing else runs in it.
+	 */
+	public long getPeakHeapBytes() {
+		return peakHeapBytes;
+	}
+
+	/**
+	 * Bytes allocated by signing thread, -1 if JVM doesn't count them
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * Result of verification after signing, null if the document was not verified
+	 */
+	public Boolean isVerified() {
+		return verified;
+	}
+
+	void setVerified(boolean verified) {
+		this.verified = verified;
+	}
+
+	@Override
+	public String toString() {
+		String peakHeap = peakHeapBytes < 0 ? "n/a" : (peakHeapBytes >> 20) + " MB";
+		return String.format("%s: %d ms, peak heap %s, allocated %d MB", signedFile, elapsedMillis,
+				peakHeap, allocatedBytes >> 20);
+	}
+
+	/**
+	 * Resets peak usage of heap pools and remembers allocated bytes of current thread.
+	 * Peak is measured only if no other probe runs from start to finish, peak reset is global.
+	 * Work of other threads that don't sign documents is counted too.
+	 */
+	static class Probe {
+		private static final AtomicInteger RUNNING = new AtomicInteger();
+		// incremented every time a probe starts while another one runs
+		private static final AtomicLong OVERLAPS = new AtomicLong();
+
+		private final long start = System.nanoTime();
+		private final long startAllocated;
+		private final long startOverlaps;
+		private final boolean alone;
+		private boolean finished;
+
+		/**
+		 * @param peakHeap false to leave heap pools alone, e.g. when documents are signed in parallel
+		 */
+		Probe(boolean peakHeap) {
+			boolean first = RUNNING.incrementAndGet() == 1;
+			alone = peakHeap && first;
+			if (alone) {
+				for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+					if (pool.getType() == MemoryType.HEAP) {
+						pool.resetPeakUsage();
+					}
+				}
+			} else if (!first) {
+				OVERLAPS.incrementAndGet();
+			}
+			startOverlaps = OVERLAPS.get();
+			startAllocated = allocatedBytes();
+		}
+
+		PdfSignResult finish(File signedFile) {
+			long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+			long peakHeap = -1;
+			if (alone && OVERLAPS.get() == startOverlaps) {
+				peakHeap = 0;
+				for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+					if (pool.getType() == MemoryType.HEAP) {
+						// pools reach their peaks at different time, the sum is upper bound
+						peakHeap += pool.getPeakUsage().getUsed();
+					}
+				}
+			}
+			cancel();
+			long allocated = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+			return new PdfSignResult(signedFile, elapsedMillis, peakHeap, allocated);
+		}
+
+		/**
+		 * Stop the probe of failed signing, so other probes can measure peak
+		 */
+		void cancel() {
+			if (!finished) {
+				finished = true;
+				RUNNING.decrementAndGet();
+			}
+		}
+
+		private static long allocatedBytes() {
+			ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+			if (threadBean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+				if (sunThreadBean.isThreadAllocatedMemorySupported() && sunThreadBean.isThreadAllocatedMemoryEnabled()) {
+					return sunThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+				}
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.qwertovsky.cert_gost;
+
+import java.time.Instant;
+
+/**
+ * Verification result of one signature inside PDF document.
+ */
+public class PdfSignatureResult {
+
+	public enum Status {
+		VALID,
+		INVALID,
+		ERROR
+	}
+
+	private final String name;
+	private final String signer;
+	private final Instant signingTime;
+	private final long coveredBytes;
+	private final long documentBytes;
+	private final boolean wholeDocument;
+	private final Status status;
+	private final String message;
+
+	PdfSignatureResult(String name, String signer, Instant signingTime, long coveredBytes, long documentBytes,
+			boolean wholeDocument, Status status, String message) {
+		this.name = name;
+		this.signer = signer;
+		this.signingTime = signingTime;
+		this.coveredBytes = coveredBytes;
+		this.documentBytes = documentBytes;
+		this.wholeDocument = wholeDocument;
+		this.status = status;
+		this.message = message;
+	}
+
+	/**
+	 * Name from signature dictionary
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Common name of signer certificate, null if signature can't be parsed
+	 */
+	public String getSigner() {
+		return signer;
+	}
+
+	/**
+	 * Signing time attribute or signature dictionary date, null if there is neither
+	 */
+	public Instant getSigningTime() {
+		return signingTime;
+	}
+
+	/**
+	 * Bytes of document covered by ByteRange
+	 */
+	public long getCoveredBytes() {
+		return coveredBytes;
+	}
+
+	public long getDocumentBytes() {
+		return documentBytes;
+	}
+
+	/**
+	 * False if document was changed by incremental update after this signature
+	 */
+	public boolean isWholeDocument() {
+		return wholeDocument;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isValid() {
+		return status == Status.VALID;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(status).append(": ").append(signer);
+		if (signingTime != null) {
+			sb.append(", ").append(signingTime);
+		}
+		sb.append(", covers ").append(coveredBytes).append(" of ").append(documentBytes).append(" bytes");
+		if (!wholeDocument) {
+			sb.append(" (document was changed after signing)");
+		}
+		if (message != null) {
+			sb.append(", ").append(message);
+		}
+		return sb.toString();
+	}
+}
@@ -4,6 +4,7 @@ import java.awt.Color;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.RectangularShape;
 import java.awt.image.BufferedImage;
+import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -16,15 +17,24 @@ import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.fontbox.ttf.TTFParser;
+import org.apache.fontbox.ttf.TrueTypeFont;
 
 import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
@@ -52,10 +62,16 @@ import org.bouncycastle.asn1.x500.style.BCStyle;
 import org.bouncycastle.asn1.x500.style.IETFUtils;
 import org.bouncycastle.cert.X509CertificateHolder;
 
-public class PdfSigner {
+public class PdfSigner implements AutoCloseable {
 	
 	private static final int SIGN_HEIGHT_DEFAULT = 85;
 	private static final int SIGN_WIDTH_DEFAULT = 180;
+	// name of signed document written next to the document ends with it
+	static final String SIGNED_SUFFIX = "_signed.pdf";
+	
+	// TrueTypeFont reads its tables lazily and is not thread safe, templates are created one at a time
+	private static final Object TEMPLATE_LOCK = new Object();
+	private static TrueTypeFont font;
 
 	private final CmsSigner cmsSigner;
 	private final X509CertificateHolder certificateHolder;
@@ -70,7 +86,20 @@ public class PdfSigner {
 	
 	private String location;
 	private String reason;
+	// null to take time of every signature from clock
 	private Instant date;
+	private Clock clock;
+	
+	private boolean lowMemory;
+	private long maxMainMemoryBytes;
+	
+	private VerifyPolicy verifyPolicy;
+	private boolean peakHeap;
+	
+	// parts of visual signature that are the same for every document
+	private List<String> certificateLines;
+	private PDDocument imageDocument;
+	private PDImageXObject image;
 
 	public static Builder builder(CmsSigner cmsSigner, X509CertificateHolder certificateHolder) {
 		return new Builder(cmsSigner, certificateHolder);
@@ -98,6 +127,12 @@ public class PdfSigner {
 		private String reason;
 		private Instant date;
 		
+		private boolean lowMemory;
+		private long maxMainMemoryBytes = -1;
+		
+		private VerifyPolicy verifyPolicy = VerifyPolicy.full();
+		private boolean peakHeap = true;
+		
 		public Builder(CmsSigner cmsSigner, X509CertificateHolder certificateHolder) {
 			this.cmsSigner = cmsSigner;
 			this.certificateHolder = certificateHolder;
@@ -106,15 +141,17 @@ public class PdfSigner {
 		public PdfSigner build() throws IOException {
 			PdfSigner pdfSigner = new PdfSigner(cmsSigner, certificateHolder);
 			
-			if (this.date == null) {
-				pdfSigner.date = Instant.now(clock);
-			} else {
-				pdfSigner.date = this.date;
-			}
+			pdfSigner.date = this.date;
+			pdfSigner.clock = this.clock;
 			
 			pdfSigner.reason = this.reason;
 			pdfSigner.location = this.location;
 			
+			pdfSigner.lowMemory = this.lowMemory;
+			pdfSigner.maxMainMemoryBytes = this.maxMainMemoryBytes;
+			pdfSigner.verifyPolicy = this.verifyPolicy;
+			pdfSigner.peakHeap = this.peakHeap;
+			
 			pdfSigner.visual = this.visual;
 			pdfSigner.pageNumber = this.pageNumber;
 			if (this.visual) {
@@ -126,27 +163,27 @@ public class PdfSigner {
 						throw new IllegalArgumentException("Image file not found: " + this.imageFile);
 					}
 					pdfSigner.imageFile = this.imageFile;
-					BufferedImage image = ImageIO.read(imageFile);
+					Dimension image = readImageSize(imageFile);
 					if (this.imageScale > 0) {
 						pdfSigner.imageScale = this.imageScale;
-						this.width = Math.round(image.getWidth() * this.imageScale);
-						this.height = Math.round(image.getHeight() * this.imageScale);
+						this.width = Math.round(image.width * this.imageScale);
+						this.height = Math.round(image.height * this.imageScale);
 					} else {
 						float imageScale = 1;
 						if (this.width > 0 || this.height > 0) {
-							float xScale = (float)this.width / image.getWidth();
-							float yScale = (float)this.height / image.getHeight();
+							float xScale = (float)this.width / image.width;
+							float yScale = (float)this.height / image.height;
 							imageScale = Math.min(xScale, yScale);
 							if (imageScale == 0) {
 								imageScale = Math.max(xScale, yScale);
 							}
 						}
 						pdfSigner.imageScale = imageScale;
-						System.out.println(imageScale);
-						this.width = Math.round(image.getWidth() * imageScale);
-						this.height = Math.round(image.getHeight() * imageScale);
+						this.width = Math.round(image.width * imageScale);
+						this.height = Math.round(image.height * imageScale);
 					}
 				} else {
+					pdfSigner.certificateLines = createCertificateLines(certificateHolder);
 					if (this.height == 0) {
 						this.height = PdfSigner.SIGN_HEIGHT_DEFAULT;
 					}
@@ -160,6 +197,29 @@ public class PdfSigner {
 			return pdfSigner;
 		}
 
+		/**
+		 * Read image size without decoding pixels
+		 */
+		private static Dimension readImageSize(File imageFile) throws IOException {
+			try (ImageInputStream iis = ImageIO.createImageInputStream(imageFile)) {
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+				if (readers.hasNext()) {
+					ImageReader reader = readers.next();
+					try {
+						reader.setInput(iis, true, true);
+						return new Dimension(reader.getWidth(0), reader.getHeight(0));
+					} finally {
+						reader.dispose();
+					}
+				}
+			}
+			BufferedImage image = ImageIO.read(imageFile);
+			if (image == null) {
+				throw new IllegalArgumentException("Unknown image format: " + imageFile);
+			}
+			return new Dimension(image.getWidth(), image.getHeight());
+		}
+
 		/** 
 		 * @param pageNumber 0-based
 		 * @return
@@ -179,6 +239,9 @@ public class PdfSigner {
 			return this;
 		}
 
+		/**
+		 * Time of every signature. By default every signature takes the time from clock when it is made
+		 */
 		public Builder date(Instant date) {
 			this.date = date;
 			return this;
@@ -224,25 +287,96 @@ public class PdfSigner {
 			return this;
 		}
 		
+		/**
+		 * Keep document objects and streams in scratch file instead of heap
+		 */
+		public Builder lowMemory(boolean lowMemory) {
+			this.lowMemory = lowMemory;
+			return this;
+		}
+		
+		/**
+		 * Heap for document in low memory mode, the rest goes to scratch file
+		 * @param maxMainMemoryBytes -1 to keep everything in scratch file
+		 */
+		public Builder maxMainMemory(long maxMainMemoryBytes) {
+			this.maxMainMemoryBytes = maxMainMemoryBytes;
+			return this;
+		}
+		
+		/**
+		 * Which signed documents are verified, every document by default
+		 */
+		public Builder verifyPolicy(VerifyPolicy verifyPolicy) {
+			this.verifyPolicy = verifyPolicy;
+			return this;
+		}
+		
+		/**
+		 * Measure peak heap of every signature. Heap is shared by the whole JVM,
+		 * so turn it off when documents are signed in parallel
+		 */
+		public Builder peakHeap(boolean peakHeap) {
+			this.peakHeap = peakHeap;
+			return this;
+		}
+		
 	}
 
 	private PdfSigner(CmsSigner cmsSigner, X509CertificateHolder certificateHolder) {
 		this.cmsSigner = cmsSigner;
 		this.certificateHolder = certificateHolder;
 	}
+	
+	/**
+	 * Release cached image of visual signature
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (TEMPLATE_LOCK) {
+			if (imageDocument != null) {
+				imageDocument.close();
+				imageDocument = null;
+				image = null;
+			}
+		}
+	}
 
-	public void sign(File fileToSig) throws Exception {
-		
-		String fileSignedName = fileToSig.getName().replaceAll(".pdf$","_signed.pdf");
+	/**
+	 * Sign into file_signed.pdf next to the document
+	 */
+	public PdfSignResult sign(File fileToSig) throws Exception {
+		String fileSignedName = fileToSig.getName().replaceAll(".pdf$", SIGNED_SUFFIX);
 		if (!fileSignedName.endsWith(".pdf")) {
-			fileSignedName = fileToSig.getName() + "_signed.pdf";
+			fileSignedName = fileToSig.getName() + SIGNED_SUFFIX;
 		}
 		
-		File pdfFileSigned = new File(fileToSig.getParent(), fileSignedName);
+		return sign(fileToSig, new File(fileToSig.getParent(), fileSignedName));
+	}
+	
+	/**
+	 * Can be called from several threads if the store is thread safe
+	 */
+	public PdfSignResult sign(File fileToSig, File pdfFileSigned) throws Exception {
+		return sign(fileToSig, pdfFileSigned, null);
+	}
+	
+	/**
+	 * @param date time of this signature, null for date of builder or time from clock
+	 */
+	public PdfSignResult sign(File fileToSig, File pdfFileSigned, Instant date) throws Exception {
+		PdfSignResult.Probe probe = new PdfSignResult.Probe(peakHeap);
+		// every document of batch gets its own time
+		if (date == null) {
+			date = this.date != null ? this.date : Instant.now(clock);
+		}
 		
         SignatureOptions signatureOptions = new SignatureOptions();
+        byte[] contentDigest;
+        byte[] sign;
 		try (
-			PDDocument doc = PDDocument.load(fileToSig);
+			// objects are parsed from file when they are accessed
+			PDDocument doc = PDDocument.load(fileToSig, getMemoryUsageSetting());
 			FileOutputStream pdfFos = new FileOutputStream(pdfFileSigned);
 			) {
 		
@@ -277,21 +411,43 @@ public class PdfSigner {
 	        
 			// visualization
 			if (visual) {
-		        signatureOptions.setVisualSignature(createVisualSignatureTemplate(certificateHolder, doc, pageNumber, this.rect, date));
+		        signatureOptions.setVisualSignature(createVisualSignatureTemplate(doc, pageNumber, this.rect, date));
 		        signatureOptions.setPage(pageNumber);
 			}
 	        doc.addSignature(pdfSignature, null, signatureOptions);
 	        
 	        ExternalSigningSupport externalSigning = doc.saveIncrementalForExternalSigning(pdfFos);
-	        InputStream isToSign = externalSigning.getContent();
+	        // ByteRange is read from source file and incremental part, only its digest is kept
+	        try (InputStream isToSign = externalSigning.getContent()) {
+	        	contentDigest = cmsSigner.calculateDigest(isToSign);
+	        }
 	        
-	        byte[] sign = cmsSigner.sign(isToSign, date, false);
+	        sign = cmsSigner.signDigest(contentDigest, date);
 	        externalSigning.setSignature(sign);
         
+		} catch (Throwable e) {
+			probe.cancel();
+			throw e;
 		}
 		signatureOptions.close();
+		PdfSignResult result = probe.finish(pdfFileSigned);
 		
-		System.out.println("Pdf: " + Verify.verifyPdf(pdfFileSigned));
+		if (verifyPolicy.shouldVerify()) {
+			result.setVerified(verifyPolicy.isInMemory()
+					? Verify.verifyDigest(sign, contentDigest)
+					: Verify.verifyPdf(pdfFileSigned));
+		}
+		return result;
+	}
+	
+	private MemoryUsageSetting getMemoryUsageSetting() {
+		if (!lowMemory) {
+			return MemoryUsageSetting.setupMainMemoryOnly();
+		}
+		if (maxMainMemoryBytes < 0) {
+			return MemoryUsageSetting.setupTempFileOnly();
+		}
+		return MemoryUsageSetting.setupMixed(maxMainMemoryBytes);
 	}
 	
 	/**
@@ -400,8 +556,58 @@ public class PdfSigner {
         permsDict.setNeedToBeUpdated(true);
     }
 	
+	// certificate lines of visual signature text, they follow the date line
+	private static List<String> createCertificateLines(X509CertificateHolder cert) {
+        // https://stackoverflow.com/questions/2914521/
+        X500Name x500Name = cert.getSubject();
+        RDN cn = x500Name.getRDNs(BCStyle.CN)[0];
+        String name = IETFUtils.valueToString(cn.getFirst().getValue());
+        RDN snilsRdn = x500Name.getRDNs(new ASN1ObjectIdentifier("1.2.643.100.3"))[0];
+        String snils = IETFUtils.valueToString(snilsRdn.getFirst().getValue());
+        RDN issuerCn = cert.getIssuer().getRDNs(BCStyle.CN)[0];
+		String issuer = issuerCn.getFirst().getValue().toString();
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		String validFrom = dateFormat.format(cert.getNotBefore());
+		String validTo = dateFormat.format(cert.getNotAfter());
+		
+		List<String> lines = new ArrayList<>();
+		lines.add("Сведения о сертификате ЭП:");
+		lines.add(String.format("%034x", cert.getSerialNumber()).toUpperCase());
+		lines.add("Владелец: " + name);
+		lines.add("СНИЛС: " + snils);
+		lines.add("Издатель: " + issuer);
+		lines.add("Действителен с " + validFrom + " по " + validTo);
+		return Collections.unmodifiableList(lines);
+	}
+	
+	private static TrueTypeFont getFont() throws IOException {
+		if (font == null) {
+			try (InputStream is = PdfSigner.class.getResourceAsStream("/arial.ttf")) {
+				font = new TTFParser().parse(is);
+			}
+		}
+		return font;
+	}
+	
+	// image is decoded once into separate document, templates refer to its stream
+	private PDImageXObject getImage() throws IOException {
+		if (image == null) {
+			imageDocument = new PDDocument();
+			image = PDImageXObject.createFromFileByExtension(this.imageFile, imageDocument);
+		}
+		return image;
+	}
+	
 	// create a template PDF document with empty signature and return it as a stream.
-    private InputStream createVisualSignatureTemplate(X509CertificateHolder cert, PDDocument srcDoc,
+    private InputStream createVisualSignatureTemplate(PDDocument srcDoc,
+    		int pageNum, RectangularShape pagePlace, Instant date)
+    		throws Exception {
+		synchronized (TEMPLATE_LOCK) {
+			return createVisualSignatureTemplateLocked(srcDoc, pageNum, pagePlace, date);
+		}
+	}
+	
+    private InputStream createVisualSignatureTemplateLocked(PDDocument srcDoc,
     		int pageNum, RectangularShape pagePlace, Instant date)
     		throws Exception {
         try (PDDocument doc = new PDDocument()) {
@@ -476,12 +682,12 @@ public class PdfSigner {
                     // save and restore graphics if the image is too large and needs to be scaled
                     cs.saveGraphicsState();
                     cs.transform(Matrix.getScaleInstance(this.imageScale, this.imageScale));
-                    PDImageXObject img = PDImageXObject.createFromFileByExtension(this.imageFile, doc);
-                    cs.drawImage(img, 0, 0);
+                    cs.drawImage(getImage(), 0, 0);
                     cs.restoreGraphicsState();
                 } else {
 	                // show text
-	                PDFont font = PDType0Font.load(doc, this.getClass().getResourceAsStream("/arial.ttf"));
+	                // font is subset for every document, parsed font is reused
+	                PDFont font = PDType0Font.load(doc, getFont(), true);
 	                float fontSize = 8;
 	                float leading = fontSize * 1.2f;
 	                cs.beginText();
@@ -490,34 +696,15 @@ public class PdfSigner {
 	                cs.newLineAtOffset(fontSize, height - leading);
 	                cs.setLeading(leading);
 	
-	                // https://stackoverflow.com/questions/2914521/
-	                X500Name x500Name = cert.getSubject();
-	                RDN cn = x500Name.getRDNs(BCStyle.CN)[0];
-	                String name = IETFUtils.valueToString(cn.getFirst().getValue());
-	                RDN snilsRdn = x500Name.getRDNs(new ASN1ObjectIdentifier("1.2.643.100.3"))[0];
-	                String snils = IETFUtils.valueToString(snilsRdn.getFirst().getValue());
-	                RDN issuerCn = cert.getIssuer().getRDNs(BCStyle.CN)[0];
-					String issuer = issuerCn.getFirst().getValue().toString();
-					SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-					String validFrom = dateFormat.format(cert.getNotBefore());
-					String validTo = dateFormat.format(cert.getNotAfter());
 					String signDate = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mmZ").withZone(ZoneId.systemDefault()).format(date);
 	
 	                cs.showText("Документ подписан электронной подписью");
 	                cs.newLine();
 	                cs.showText("Дата подписания: " + signDate);
-	                cs.newLine();
-	                cs.showText("Сведения о сертификате ЭП:");
-	                cs.newLine();
-	                cs.showText(String.format("%034x", cert.getSerialNumber()).toUpperCase());
-	                cs.newLine();
-	                cs.showText("Владелец: " + name);
-	                cs.newLine();
-	                cs.showText("СНИЛС: " + snils);
-	                cs.newLine();
-	                cs.showText("Издатель: " + issuer);
-	                cs.newLine();
-	                cs.showText("Действителен с " + validFrom + " по " + validTo);
+	                for (String line : certificateLines) {
+	                	cs.newLine();
+	                	cs.showText(line);
+	                }
 	                cs.endText();
                 }
             }
@@ -0,0 +1,204 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignerDigestMismatchException;
+import org.bouncycastle.cms.CMSVerifierCertificateNotValidException;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * Verify every signature of PDF document.
+ * <p>
+ * Document is parsed once to read signature dictionaries, then it is closed.
+ * ByteRange of every signature is digested from the file mapped into memory, so a document
+ * with N signatures is still read up to N times, once per ByteRange. Signatures can be verified in parallel.
+ */
+public class PdfVerifier {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * @param threads signatures verified at the same time
+	 * @return results in order of signature dictionaries, empty list if document is not signed
+	 */
+	public static List<PdfSignatureResult> verify(File signedFile, int threads) throws Exception {
+		List<SignatureData> signatures = readSignatures(signedFile);
+		List<PdfSignatureResult> results = new ArrayList<>(signatures.size());
+		try (FileChannel channel = FileChannel.open(signedFile.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (threads <= 1 || signatures.size() <= 1) {
+				for (SignatureData signature : signatures) {
+					results.add(verifySignature(signature, channel, size));
+				}
+				return results;
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, signatures.size()));
+			try {
+				List<Future<PdfSignatureResult>> futures = new ArrayList<>(signatures.size());
+				for (SignatureData signature : signatures) {
+					// positional reads of FileChannel can be done concurrently
+					futures.add(executor.submit(() -> verifySignature(signature, channel, size)));
+				}
+				for (Future<PdfSignatureResult> future : futures) {
+					try {
+						results.add(future.get());
+					} catch (ExecutionException e) {
+						// verifySignature catches everything, so it is a bug
+						throw new IllegalStateException(e.getCause());
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		return results;
+	}
+
+	// signature dictionaries are copied, so document can be closed before digests are calculated
+	private static List<SignatureData> readSignatures(File signedFile) throws IOException {
+		List<SignatureData> signatures = new ArrayList<>();
+		try (PDDocument document = PDDocument.load(signedFile, MemoryUsageSetting.setupTempFileOnly())) {
+			for (PDSignature signature : document.getSignatureDictionaries()) {
+				Calendar signDate = signature.getSignDate();
+				signatures.add(new SignatureData(signature.getName(), signature.getByteRange(),
+						signature.getContents(), signDate == null ? null : signDate.toInstant()));
+			}
+		}
+		return signatures;
+	}
+
+	private static PdfSignatureResult verifySignature(SignatureData signature, FileChannel channel, long size) {
+		int[] byteRange = signature.byteRange;
+		if (byteRange == null || byteRange.length != 4 || byteRange[0] != 0 || byteRange[1] < 0 || byteRange[3] < 0
+				|| byteRange[2] < byteRange[1] || (long) byteRange[2] + byteRange[3] > size) {
+			return new PdfSignatureResult(signature.name, null, signature.signDate, 0, size, false,
+					PdfSignatureResult.Status.ERROR, "Wrong ByteRange");
+		}
+		long coveredBytes = (long) byteRange[1] + byteRange[3];
+		boolean wholeDocument = (long) byteRange[2] + byteRange[3] == size;
+
+		String signer = null;
+		Instant signingTime = signature.signDate;
+		try {
+			CMSSignedData signedData = new CMSSignedData(signature.contents);
+			SignerInformation signerInformation = signedData.getSignerInfos().getSigners().iterator().next();
+			signer = getSignerName(signedData, signerInformation);
+			Instant attributeTime = getSigningTime(signerInformation);
+			if (attributeTime != null) {
+				signingTime = attributeTime;
+			}
+
+			DigestCalculatorProvider digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder()
+					.setProvider("BC")
+					.build();
+			Map<ASN1ObjectIdentifier, byte[]> hashes = new HashMap<>();
+			for (AlgorithmIdentifier digestAlgorithm : signedData.getDigestAlgorithmIDs()) {
+				DigestCalculator digestCalculator = digestCalculatorProvider.get(digestAlgorithm);
+				try (OutputStream os = digestCalculator.getOutputStream()) {
+					digestRange(channel, byteRange[0], byteRange[1], os);
+					digestRange(channel, byteRange[2], byteRange[3], os);
+				}
+				hashes.put(digestAlgorithm.getAlgorithm(), digestCalculator.getDigest());
+			}
+			CMSSignedData signedDigest = new CMSSignedData(hashes, signature.contents);
+			boolean valid = Verify.verifySigners(signedDigest.getCertificates(), signedDigest.getSignerInfos());
+			return new PdfSignatureResult(signature.name, signer, signingTime, coveredBytes, size, wholeDocument,
+					valid ? PdfSignatureResult.Status.VALID : PdfSignatureResult.Status.INVALID, null);
+		} catch (CMSSignerDigestMismatchException | CMSVerifierCertificateNotValidException e) {
+			return new PdfSignatureResult(signature.name, signer, signingTime, coveredBytes, size, wholeDocument,
+					PdfSignatureResult.Status.INVALID, e.getMessage());
+		} catch (Exception e) {
+			return new PdfSignatureResult(signature.name, signer, signingTime, coveredBytes, size, wholeDocument,
+					PdfSignatureResult.Status.ERROR, String.valueOf(e.getMessage()));
+		}
+	}
+
+	private static void digestRange(FileChannel channel, long offset, long length, OutputStream os)
+			throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long position = offset;
+		long end = offset + length;
+		while (position < end) {
+			long windowSize = Math.min(MappedFileInputStream.WINDOW_SIZE, end - position);
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+			while (window.hasRemaining()) {
+				int n = Math.min(buffer.length, window.remaining());
+				window.get(buffer, 0, n);
+				os.write(buffer, 0, n);
+			}
+			position += windowSize;
+		}
+	}
+
+	private static String getSignerName(CMSSignedData signedData, SignerInformation signerInformation) {
+		@SuppressWarnings("unchecked")
+		X509CertificateHolder cert = (X509CertificateHolder) signedData.getCertificates()
+				.getMatches(signerInformation.getSID()).stream().findFirst().orElse(null);
+		if (cert == null) {
+			return null;
+		}
+		X500Name subject = cert.getSubject();
+		RDN[] cn = subject.getRDNs(BCStyle.CN);
+		if (cn.length == 0) {
+			return subject.toString();
+		}
+		return IETFUtils.valueToString(cn[0].getFirst().getValue());
+	}
+
+	private static Instant getSigningTime(SignerInformation signerInformation) {
+		if (signerInformation.getSignedAttributes() == null) {
+			return null;
+		}
+		Attribute attribute = signerInformation.getSignedAttributes().get(CMSAttributes.signingTime);
+		if (attribute == null || attribute.getAttrValues().size() == 0) {
+			return null;
+		}
+		return Time.getInstance(attribute.getAttrValues().getObjectAt(0)).getDate().toInstant();
+	}
+
+	private static class SignatureData {
+		private final String name;
+		private final int[] byteRange;
+		private final byte[] contents;
+		private final Instant signDate;
+
+		SignatureData(String name, int[] byteRange, byte[] contents, Instant signDate) {
+			this.name = name;
+			this.byteRange = byteRange;
+			this.contents = contents;
+			this.signDate = signDate;
+		}
+	}
+}
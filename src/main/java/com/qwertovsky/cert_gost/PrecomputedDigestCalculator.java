@@ -0,0 +1,36 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.OutputStream;
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.operator.DigestCalculator;
+
+/**
+ * Digest calculator for content that has already been hashed.
+ * Everything written to the stream is ignored.
+ */
+public class PrecomputedDigestCalculator implements DigestCalculator {
+	private final AlgorithmIdentifier alg;
+	private final byte[] digest;
+
+	public PrecomputedDigestCalculator(AlgorithmIdentifier alg, byte[] digest) {
+		this.alg = alg;
+		this.digest = digest.clone();
+	}
+
+	@Override
+	public AlgorithmIdentifier getAlgorithmIdentifier() {
+		return alg;
+	}
+
+	@Override
+	public byte[] getDigest() {
+		return digest.clone();
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return OutputStream.nullOutputStream();
+	}
+
+}
@@ -0,0 +1,354 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Create detached signatures for many files in stages:
+ * <ul>
+ * <li>hash - files are read and digested on host in parallel</li>
+ * <li>sign - signed attributes are signed by the store and CMS is encoded, token sessions are the limit</li>
+ * <li>write - SIG files are written and verified by policy</li>
+ * </ul>
+ * Stages are connected by bounded queues, so the token signs the next digest while other files
+ * are read and written, and digests don't pile up in memory when the token is slow.
+ * Results are reported in input order. A file fails alone, whatever its stage throws.
+ */
+public class SignPipeline {
+
+	private static final Item END = new Item(null);
+	// result of a file is checked this often to find stopped pipeline
+	private static final long POLL_MILLIS = 1000;
+	// time for stage threads to exit after the last file
+	private static final long STOP_MILLIS = 10_000;
+
+	private final CmsSigner cmsSigner;
+	private final VerifyPolicy verifyPolicy;
+	private final Stage hashStage;
+	private final Stage signStage;
+	private final Stage writeStage;
+
+	/**
+	 * @param threads threads to hash and threads to write files
+	 * @param signers threads to sign, usually number of token sessions
+	 */
+	public SignPipeline(CmsSigner cmsSigner, int threads, int signers, VerifyPolicy verifyPolicy) {
+		if (threads < 1 || signers < 1) {
+			throw new IllegalArgumentException("Number of threads should be positive: " + threads + ", " + signers);
+		}
+		this.cmsSigner = cmsSigner;
+		this.verifyPolicy = verifyPolicy;
+		this.hashStage = new Stage("hash", threads, null);
+		// two digests per signer keep the token busy while the next digest is taken
+		this.signStage = new Stage("sign", signers, new ArrayBlockingQueue<>(2 * signers));
+		this.writeStage = new Stage("write", threads, new ArrayBlockingQueue<>(2 * threads));
+	}
+
+	/**
+	 * Sign files. One pipeline runs one batch at a time.
+	 */
+	public synchronized BatchSigner.Result sign(List<File> files, Instant date, PrintStream out)
+			throws InterruptedException {
+		List<Item> items = new ArrayList<>(files.size());
+		for (File file : files) {
+			items.add(new Item(file));
+		}
+		BatchSigner.Result result = new BatchSigner.Result();
+		long start = System.nanoTime();
+		for (Stage stage : getStages()) {
+			stage.start(start);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(
+				hashStage.threads + signStage.threads + writeStage.threads);
+		try {
+			AtomicInteger next = new AtomicInteger();
+			for (int i = 0; i < hashStage.threads; i++) {
+				executor.execute(() -> hash(items, next));
+			}
+			for (int i = 0; i < signStage.threads; i++) {
+				executor.execute(() -> sign(date));
+			}
+			for (int i = 0; i < writeStage.threads; i++) {
+				executor.execute(this::write);
+			}
+			// wait in input order to keep the report deterministic
+			for (Item item : items) {
+				BatchSigner.FileResult fileResult = getResult(item);
+				result.add(fileResult);
+				fileResult.print(out);
+			}
+			// END has gone through all stages, threads exit after the last file
+			executor.shutdown();
+			executor.awaitTermination(STOP_MILLIS, TimeUnit.MILLISECONDS);
+		} finally {
+			executor.shutdownNow();
+			long end = System.nanoTime();
+			for (Stage stage : getStages()) {
+				stage.finish(end);
+			}
+		}
+		result.setElapsedNanos(System.nanoTime() - start);
+		return result;
+	}
+
+	public List<Stage> getStages() {
+		return Arrays.asList(hashStage, signStage, writeStage);
+	}
+
+	public void printStages(PrintStream out) {
+		for (Stage stage : getStages()) {
+			out.println(stage);
+		}
+	}
+
+	private void hash(List<Item> items, AtomicInteger next) {
+		try {
+			int index;
+			while ((index = next.getAndIncrement()) < items.size()) {
+				Item item = items.get(index);
+				long start = System.nanoTime();
+				item.start = start;
+				try {
+					item.contentDigest = cmsSigner.calculateDigest(item.file);
+				} catch (Throwable e) {
+					item.fail(e);
+					continue;
+				} finally {
+					hashStage.done(start);
+				}
+				signStage.queue.put(item);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			hashStage.exit(signStage);
+		}
+	}
+
+	private void sign(Instant date) {
+		try {
+			Item item;
+			while ((item = signStage.take()) != END) {
+				long start = System.nanoTime();
+				try {
+					item.sign = cmsSigner.signDigest(item.contentDigest, date);
+				} catch (Throwable e) {
+					item.fail(e);
+					continue;
+				} finally {
+					signStage.done(start);
+				}
+				writeStage.queue.put(item);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			signStage.exit(writeStage);
+		}
+	}
+
+	private void write() {
+		try {
+			Item item;
+			while ((item = writeStage.take()) != END) {
+				long start = System.nanoTime();
+				try {
+					Boolean verified = BatchSigner.writeAndVerify(item.file, item.sign, item.contentDigest,
+							verifyPolicy);
+					if (Boolean.FALSE.equals(verified)) {
+						item.result.complete(BatchSigner.FileResult.failed(item.file, System.nanoTime() - item.start,
+								"Signature verification failed"));
+					} else {
+						item.result.complete(BatchSigner.FileResult.ok(item.file, System.nanoTime() - item.start));
+					}
+				} catch (Throwable e) {
+					item.fail(e);
+				} finally {
+					writeStage.done(start);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			writeStage.exit(null);
+		}
+	}
+
+	private BatchSigner.FileResult getResult(Item item) throws InterruptedException {
+		while (true) {
+			try {
+				return item.result.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				// stages complete files normally, so it is a bug
+				throw new IllegalStateException(e.getCause());
+			} catch (TimeoutException e) {
+				if (writeStage.running.get() == 0) {
+					// write threads have exited, nobody completes the file
+					item.result.complete(BatchSigner.FileResult.failed(item.file,
+							System.nanoTime() - item.start, "Pipeline has stopped"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stage threads with the queue they take files from.
+	 * Utilization is part of the batch time the threads were working,
+	 * queue depth is number of files left in queue every time a file is taken.
+	 * Depth above zero at sign stage means the token didn't wait for digests.
+	 */
+	public static class Stage {
+		private final String name;
+		private final int threads;
+		private final BlockingQueue<Item> queue;
+		private final AtomicInteger running = new AtomicInteger();
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong depthSum = new AtomicLong();
+		private final AtomicInteger maxDepth = new AtomicInteger();
+		private volatile long startNanos;
+		private volatile long endNanos;
+
+		private Stage(String name, int threads, BlockingQueue<Item> queue) {
+			this.name = name;
+			this.threads = threads;
+			this.queue = queue;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public long getProcessed() {
+			return processed.get();
+		}
+
+		public long getBusyNanos() {
+			return busyNanos.get();
+		}
+
+		/**
+		 * Busy time of threads to batch time, from 0 to 1
+		 */
+		public double getUtilization() {
+			long end = endNanos == 0 ? System.nanoTime() : endNanos;
+			long wallNanos = (end - startNanos) * threads;
+			return wallNanos <= 0 ? 0 : (double) busyNanos.get() / wallNanos;
+		}
+
+		/**
+		 * Files waiting for the stage now, 0 for the first stage
+		 */
+		public int getQueueDepth() {
+			return queue == null ? 0 : queue.size();
+		}
+
+		public int getQueueCapacity() {
+			return queue == null ? 0 : queue.size() + queue.remainingCapacity();
+		}
+
+		public double getAverageQueueDepth() {
+			long count = processed.get();
+			return count == 0 ? 0 : (double) depthSum.get() / count;
+		}
+
+		public int getMaxQueueDepth() {
+			return maxDepth.get();
+		}
+
+		private void start(long start) {
+			startNanos = start;
+			endNanos = 0;
+			running.set(threads);
+			if (queue != null) {
+				// interrupted batch may leave files in queue
+				queue.clear();
+			}
+			busyNanos.set(0);
+			processed.set(0);
+			depthSum.set(0);
+			maxDepth.set(0);
+		}
+
+		private void finish(long end) {
+			endNanos = end;
+		}
+
+		private Item take() throws InterruptedException {
+			Item item = queue.take();
+			if (item != END) {
+				int depth = queue.size();
+				depthSum.addAndGet(depth);
+				maxDepth.accumulateAndGet(depth, Math::max);
+			}
+			return item;
+		}
+
+		private void done(long start) {
+			busyNanos.addAndGet(System.nanoTime() - start);
+			processed.incrementAndGet();
+		}
+
+		// the last thread of the stage stops the next stage
+		private void exit(Stage next) {
+			if (running.decrementAndGet() == 0 && next != null) {
+				for (int i = 0; i < next.threads; i++) {
+					try {
+						next.queue.put(END);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Stage %s: %d threads, %d files, utilization %.0f%%",
+					name, threads, processed.get(), getUtilization() * 100));
+			if (queue != null) {
+				sb.append(String.format(", queue average %.1f, max %d of %d",
+						getAverageQueueDepth(), getMaxQueueDepth(), getQueueCapacity()));
+			}
+			return sb.toString();
+		}
+	}
+
+	private static class Item {
+		private final File file;
+		private final CompletableFuture<BatchSigner.FileResult> result = new CompletableFuture<>();
+		// latency of file starts when it is taken by hash stage
+		private long start;
+		private byte[] contentDigest;
+		private byte[] sign;
+
+		Item(File file) {
+			this.file = file;
+		}
+
+		void fail(Throwable e) {
+			result.complete(BatchSigner.FileResult.failed(file, System.nanoTime() - start,
+					String.valueOf(e.getMessage())));
+		}
+	}
+}
@@ -0,0 +1,373 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+
+import com.qwertovsky.cert_gost.store.GostStore;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server on loopback interface. It keeps the store open between requests.
+ * <pre>
+ * POST /sign/detached?date=2022-12-31T20:59:59Z   body: document, response: SIG
+ * POST /sign/attached?date=...                    body: document, response: SIG with document
+ * POST /sign/pdf?reason=..&amp;location=..&amp;visual=true&amp;page=1&amp;x=100&amp;y=100
+ *                                                 body: PDF, response: signed PDF
+ * POST /verify/detached   header X-Signature: base64 SIG, body: document, response: true/false
+ * POST /verify/pdf        body: PDF, response: true/false
+ * </pre>
+ * Every request needs header {@code Authorization: Bearer <token>} with the access token of the server.
+ */
+public class SignServer {
+
+	static final int PORT_DEFAULT = 8089;
+	// signers of other visual options are built for one request
+	private static final int PDF_SIGNERS_MAX = 16;
+
+	private final GostStore store;
+	private final CmsSigner cmsSigner;
+	private final HttpServer httpServer;
+	private final ExecutorService executor;
+	// token session can't be shared between requests
+	private final Lock signLock;
+	private final byte[] accessToken;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	// PDF signers by visual options keep certificate text and image between requests
+	private final Map<List<Object>, PdfSigner> pdfSigners = new ConcurrentHashMap<>();
+
+	/**
+	 * @param accessToken token that clients send in Authorization header
+	 */
+	public SignServer(GostStore store, CmsSigner cmsSigner, int port, int threads, String accessToken)
+			throws IOException {
+		if (accessToken == null || accessToken.isBlank()) {
+			throw new IllegalArgumentException("Access token is empty");
+		}
+		this.store = store;
+		this.cmsSigner = cmsSigner;
+		this.accessToken = accessToken.getBytes(StandardCharsets.UTF_8);
+		this.signLock = store.isThreadSafe() ? null : new ReentrantLock();
+		this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.httpServer.setExecutor(executor);
+		this.httpServer.createContext("/sign/detached", post(this::signDetached));
+		this.httpServer.createContext("/sign/attached", post(this::signAttached));
+		this.httpServer.createContext("/sign/pdf", post(this::signPdf));
+		this.httpServer.createContext("/verify/detached", post(this::verifyDetached));
+		this.httpServer.createContext("/verify/pdf", post(this::verifyPdf));
+	}
+
+	public void start() {
+		httpServer.start();
+	}
+
+	/**
+	 * Random token for server started without token file
+	 */
+	public static String generateAccessToken() {
+		byte[] token = new byte[32];
+		new SecureRandom().nextBytes(token);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+	}
+
+	public InetSocketAddress getAddress() {
+		return httpServer.getAddress();
+	}
+
+	public void stop() {
+		httpServer.stop(1);
+		executor.shutdown();
+		for (PdfSigner pdfSigner : pdfSigners.values()) {
+			try {
+				pdfSigner.close();
+			} catch (IOException e) {
+				System.err.println("PDF signer is not closed: " + e.getMessage());
+			}
+		}
+		pdfSigners.clear();
+		stopped.countDown();
+	}
+
+	public void awaitStop() throws InterruptedException {
+		stopped.await();
+	}
+
+	private void signDetached(HttpExchange exchange) throws Exception {
+		Instant date = getDate(exchange);
+		// body is read while it is digested, slow client must not hold the token
+		byte[] contentDigest;
+		try (InputStream is = exchange.getRequestBody()) {
+			contentDigest = cmsSigner.calculateDigest(is);
+		}
+		byte[] sign = withSignLock(() -> cmsSigner.signDigest(contentDigest, date));
+		sendBytes(exchange, "application/pkcs7-signature", sign);
+	}
+
+	private void signAttached(HttpExchange exchange) throws Exception {
+		Instant date = getDate(exchange);
+		byte[] content;
+		try (InputStream is = exchange.getRequestBody()) {
+			content = is.readAllBytes();
+		}
+		byte[] sign = withSignLock(() -> cmsSigner.sign(new ByteArrayInputStream(content), date, true));
+		sendBytes(exchange, "application/pkcs7-mime", sign);
+	}
+
+	private void signPdf(HttpExchange exchange) throws Exception {
+		Map<String, String> params = getParams(exchange);
+		File dir = Files.createTempDirectory("gost_sign").toFile();
+		File pdfFile = new File(dir, "document.pdf");
+		try {
+			try (InputStream is = exchange.getRequestBody()) {
+				Files.copy(is, pdfFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Instant date = getDate(exchange);
+			File signedFile = new File(dir, "document_signed.pdf");
+			String reason = params.get("reason");
+			String location = params.get("location");
+			boolean visual = Boolean.parseBoolean(params.get("visual"));
+			int pageNumber = Integer.parseInt(params.getOrDefault("page", "1")) - 1;
+			int x = Integer.parseInt(params.getOrDefault("x", "10"));
+			int y = Integer.parseInt(params.getOrDefault("y", "10"));
+			int width = Integer.parseInt(params.getOrDefault("width", "0"));
+			int height = Integer.parseInt(params.getOrDefault("height", "0"));
+			List<Object> options = Arrays.asList(reason, location, visual, pageNumber, x, y, width, height);
+			PdfSigner pdfSigner = pdfSigners.get(options);
+			boolean cached = pdfSigner != null;
+			if (!cached) {
+				pdfSigner = PdfSigner.builder(cmsSigner, store.getCertificateHolder())
+						.reason(reason)
+						.location(location)
+						.visual(visual)
+						.pageNumber(pageNumber)
+						.x(x)
+						.y(y)
+						.width(width)
+						.height(height)
+						.peakHeap(false)
+						.build();
+				if (pdfSigners.size() < PDF_SIGNERS_MAX) {
+					PdfSigner other = pdfSigners.putIfAbsent(options, pdfSigner);
+					if (other != null) {
+						pdfSigner.close();
+						pdfSigner = other;
+					}
+					cached = true;
+				}
+			}
+			try {
+				PdfSigner signer = pdfSigner;
+				withSignLock(() -> signer.sign(pdfFile, signedFile, date));
+			} finally {
+				if (!cached) {
+					pdfSigner.close();
+				}
+			}
+			exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+			exchange.sendResponseHeaders(200, signedFile.length());
+			try (OutputStream os = exchange.getResponseBody()) {
+				Files.copy(signedFile.toPath(), os);
+			}
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private void verifyDetached(HttpExchange exchange) throws Exception {
+		String signature = exchange.getRequestHeaders().getFirst("X-Signature");
+		if (signature == null) {
+			throw new IllegalArgumentException("X-Signature header is required");
+		}
+		byte[] sig = Base64.getDecoder().decode(signature);
+		boolean result;
+		try (InputStream is = exchange.getRequestBody()) {
+			result = Verify.verifyDetachedStream(sig, is);
+		}
+		sendBytes(exchange, "text/plain", String.valueOf(result).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void verifyPdf(HttpExchange exchange) throws Exception {
+		File pdfFile = File.createTempFile("gost_sign", ".pdf");
+		try {
+			try (InputStream is = exchange.getRequestBody()) {
+				Files.copy(is, pdfFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			boolean result = Verify.verifyPdf(pdfFile);
+			sendBytes(exchange, "text/plain", String.valueOf(result).getBytes(StandardCharsets.UTF_8));
+		} finally {
+			pdfFile.delete();
+		}
+	}
+
+	private <T> T withSignLock(SignAction<T> action) throws Exception {
+		if (signLock == null) {
+			return action.run();
+		}
+		signLock.lock();
+		try {
+			return action.run();
+		} finally {
+			signLock.unlock();
+		}
+	}
+
+	private static Instant getDate(HttpExchange exchange) {
+		String date = getParams(exchange).get("date");
+		if (date == null) {
+			return null;
+		}
+		try {
+			return Instant.parse(date);
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Wrong date: " + date, e);
+		}
+	}
+
+	private static Map<String, String> getParams(HttpExchange exchange) {
+		Map<String, String> params = new HashMap<>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return params;
+		}
+		for (String param : query.split("&")) {
+			int i = param.indexOf('=');
+			String name = i < 0 ? param : param.substring(0, i);
+			String value = i < 0 ? "" : param.substring(i + 1);
+			params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	private static void sendBytes(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	private boolean isAuthorized(HttpExchange exchange) {
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if (authorization == null || !authorization.startsWith("Bearer ")) {
+			return false;
+		}
+		byte[] token = authorization.substring("Bearer ".length()).strip().getBytes(StandardCharsets.UTF_8);
+		// time doesn't depend on matched prefix
+		return MessageDigest.isEqual(accessToken, token);
+	}
+
+	private HttpHandler post(ExchangeHandler handler) {
+		return exchange -> {
+			try {
+				if (!isAuthorized(exchange)) {
+					exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+					sendError(exchange, 401, "Unauthorized");
+					return;
+				}
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					sendError(exchange, 405, "Method not allowed");
+					return;
+				}
+				handler.handle(exchange);
+			} catch (IllegalArgumentException e) {
+				sendError(exchange, 400, e.getMessage());
+			} catch (Exception e) {
+				e.printStackTrace();
+				sendError(exchange, 500, e.getMessage());
+			} finally {
+				exchange.close();
+			}
+		};
+	}
+
+	private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+		if (exchange.getResponseCode() != -1) {
+			// response has been started already
+			return;
+		}
+		byte[] body = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(code, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	@FunctionalInterface
+	private interface ExchangeHandler {
+		void handle(HttpExchange exchange) throws Exception;
+	}
+
+	@FunctionalInterface
+	private interface SignAction<T> {
+		T run() throws Exception;
+	}
+
+	static Options createOptions() {
+		Options clOptions = new Options();
+
+		Option serverOption = Option.builder()
+				.longOpt(CliOptions.SERVER)
+				.desc("Run HTTP server on loopback interface. The store stays open between requests")
+				.build();
+		clOptions.addOption(serverOption);
+
+		Option serverPortOption = Option.builder()
+				.longOpt(CliOptions.SERVER_PORT)
+				.argName(String.valueOf(PORT_DEFAULT))
+				.desc("Server port")
+				.hasArg(true)
+				.build();
+		clOptions.addOption(serverPortOption);
+
+		Option serverThreadsOption = Option.builder()
+				.longOpt(CliOptions.SERVER_THREADS)
+				.argName("4")
+				.desc("Number of threads to handle requests")
+				.hasArg(true)
+				.build();
+		clOptions.addOption(serverThreadsOption);
+
+		Option serverTokenFileOption = Option.builder()
+				.longOpt(CliOptions.SERVER_TOKEN_FILE)
+				.argName("./file_path")
+				.desc("File with access token for clients. Random token is printed if it is not set")
+				.hasArg(true)
+				.build();
+		clOptions.addOption(serverTokenFileOption);
+
+		return clOptions;
+	}
+}
@@ -0,0 +1,92 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.SignerInformationVerifier;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Ready verifiers of signer certificates. Verifier keeps the certificate converted to JCA
+ * with decoded public key, so the key is decoded once per certificate.
+ * <p>
+ * Certificates are looked up by SHA-256 fingerprint of the encoded certificate,
+ * least recently used verifier is removed when the cache is full.
+ */
+public class VerifierCache {
+
+	private final int capacity;
+	private final Map<String, SignerInformationVerifier> verifiers;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public VerifierCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Cache capacity should be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.verifiers = new LinkedHashMap<String, SignerInformationVerifier>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SignerInformationVerifier> eldest) {
+				return size() > VerifierCache.this.capacity;
+			}
+		};
+	}
+
+	public SignerInformationVerifier getVerifier(X509CertificateHolder cert)
+			throws OperatorCreationException, CertificateException, IOException, NoSuchAlgorithmException {
+		String fingerprint = fingerprint(cert);
+		synchronized (verifiers) {
+			SignerInformationVerifier verifier = verifiers.get(fingerprint);
+			if (verifier != null) {
+				hits.incrementAndGet();
+				return verifier;
+			}
+		}
+		misses.incrementAndGet();
+		// built outside the lock, concurrent misses of one certificate build it twice
+		SignerInformationVerifier verifier = new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(cert);
+		synchronized (verifiers) {
+			verifiers.put(fingerprint, verifier);
+		}
+		return verifier;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int size() {
+		synchronized (verifiers) {
+			return verifiers.size();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public void clear() {
+		synchronized (verifiers) {
+			verifiers.clear();
+		}
+	}
+
+	private static String fingerprint(X509CertificateHolder cert) throws IOException, NoSuchAlgorithmException {
+		return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()));
+	}
+}
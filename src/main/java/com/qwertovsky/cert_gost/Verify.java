@@ -1,13 +1,21 @@
 package com.qwertovsky.cert_gost;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.Provider;
 import java.security.Security;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -15,22 +23,28 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataParser;
+import org.bouncycastle.cms.CMSTypedStream;
 import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.SignerInformationStore;
-import org.bouncycastle.cms.SignerInformationVerifier;
-import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.Store;
 
 public class Verify {
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int VERIFIER_CACHE_SIZE = 1024;
+	
+	private static final VerifierCache verifierCache = new VerifierCache(VERIFIER_CACHE_SIZE);
 
 	public static void main(String... args) throws Exception {
 		
@@ -54,6 +68,11 @@ public class Verify {
 			return;
 		}
 
+		if (BulkVerifier.isBulk(commandLine)) {
+			verifyBulk(commandLine);
+			return;
+		}
+
 		String filePath = commandLine.getOptionValue(CliOptions.INPUT);
 		if (filePath == null) {
 			System.err.println("File input is required");
@@ -73,43 +92,132 @@ public class Verify {
 
 		boolean pdfAttached = commandLine.hasOption(CliOptions.PDF);
 		if (pdfAttached) {
-			boolean verifyPdf = verifyPdf(inputFile);
+			int threads = Integer.parseInt(commandLine.getOptionValue(CliOptions.THREADS, "1"));
+			List<PdfSignatureResult> results = PdfVerifier.verify(inputFile, threads);
+			for (PdfSignatureResult result : results) {
+				System.out.println(result);
+			}
+			boolean verifyPdf = !results.isEmpty() && results.stream().allMatch(PdfSignatureResult::isValid);
 			System.out.println("Pdf: " + verifyPdf);
 		} else {
-			FileInputStream is = new FileInputStream(inputFile);
-			byte[] data = is.readAllBytes();
-			is.close();
-			
 			String sigPath = commandLine.getOptionValue(CliOptions.SIG_FILE);
 			if (sigPath == null) {
 				sigPath = inputFile.getAbsolutePath().concat(".sig");
 			}
-			FileInputStream sigIs = new FileInputStream(new File(sigPath));
-			byte[] sig = sigIs.readAllBytes();
-			sigIs.close();
 			
-			boolean verifyDetachedData = verifyDetachedData(sig, data);
+			boolean verifyDetachedData = verifyDetached(inputFile, new File(sigPath));
 			System.out.println("Sig: " + verifyDetachedData);
 		}
 	}
 
-	public static boolean verifyDetached(File file) throws Exception {
-		FileInputStream is = new FileInputStream(file);
-		byte[] data = is.readAllBytes();
-		is.close();
+	private static void verifyBulk(CommandLine commandLine) throws Exception {
+		List<File> files = BulkVerifier.collectInputs(commandLine);
+		if (files.isEmpty()) {
+			System.err.println("No input files found");
+			return;
+		}
+		
+		Security.setProperty("crypto.policy", "unlimited");
+		Security.addProvider(new BouncyCastleProvider());
 		
-		FileInputStream sigIs = new FileInputStream(new File(file.getParent(), file.getName().concat(".sig")));
-		byte[] sig = sigIs.readAllBytes();
-		sigIs.close();
+		int threads = Integer.parseInt(commandLine.getOptionValue(CliOptions.THREADS,
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		BulkVerifier.ReportFormat reportFormat = BulkVerifier.ReportFormat.byName(
+				commandLine.getOptionValue(CliOptions.REPORT_FORMAT, "csv"));
+		String checkpointPath = commandLine.getOptionValue(CliOptions.CHECKPOINT);
+		BulkVerifier bulkVerifier = new BulkVerifier(threads, reportFormat,
+				checkpointPath == null ? null : new File(checkpointPath));
 		
-		return verifyDetachedData(sig, data);
+		String reportPath = commandLine.getOptionValue(CliOptions.REPORT);
+		long failed;
+		if (reportPath == null) {
+			failed = bulkVerifier.verify(files, System.out);
+		} else {
+			// resumed run appends to the report
+			try (PrintStream report = new PrintStream(new FileOutputStream(reportPath, bulkVerifier.isResumed()),
+					false, StandardCharsets.UTF_8)) {
+				failed = bulkVerifier.verify(files, report);
+			}
+		}
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	public static boolean verifyDetached(File file) throws Exception {
+		return verifyDetached(file, new File(file.getParent(), file.getName().concat(".sig")));
+	}
+	
+	public static boolean verifyDetached(File file, File sigFile) throws Exception {
+		byte[] sig;
+		try (FileInputStream sigIs = new FileInputStream(sigFile)) {
+			sig = sigIs.readAllBytes();
+		}
+		try (MappedFileInputStream is = new MappedFileInputStream(file)) {
+			return verifyDetachedStream(sig, is);
+		}
 	}
 	
 	public static boolean verifyDetachedData(byte[] cmsSignedData, byte[] data)
-			throws GeneralSecurityException, OperatorCreationException, CMSException {
+			throws GeneralSecurityException, OperatorCreationException, CMSException, IOException {
 		CMSSignedData signedData = new CMSSignedData(new CMSProcessableByteArray(data), cmsSignedData);
-		Store<X509CertificateHolder> certStore = signedData.getCertificates();
-		SignerInformationStore signerInformationStore = signedData.getSignerInfos();
+		return verifySigners(signedData.getCertificates(), signedData.getSignerInfos());
+	}
+	
+	/**
+	 * Verify encapsulated signature, the content is inside signature
+	 */
+	public static boolean verifyAttached(byte[] cmsSignedData)
+			throws GeneralSecurityException, OperatorCreationException, CMSException, IOException {
+		CMSSignedData signedData = new CMSSignedData(cmsSignedData);
+		return verifySigners(signedData.getCertificates(), signedData.getSignerInfos());
+	}
+	
+	/**
+	 * Verify detached signature against content digest calculated before, the content is not read.
+	 */
+	public static boolean verifyDigest(byte[] cmsSignedData, byte[] contentDigest)
+			throws GeneralSecurityException, OperatorCreationException, CMSException, IOException {
+		Map<ASN1ObjectIdentifier, byte[]> hashes = new HashMap<>();
+		for (AlgorithmIdentifier digestAlgorithm : new CMSSignedData(cmsSignedData).getDigestAlgorithmIDs()) {
+			hashes.put(digestAlgorithm.getAlgorithm(), contentDigest);
+		}
+		CMSSignedData signedData = new CMSSignedData(hashes, cmsSignedData);
+		return verifySigners(signedData.getCertificates(), signedData.getSignerInfos());
+	}
+	
+	/**
+	 * Document is read once through digest calculators, it is not kept in memory.
+	 */
+	public static boolean verifyDetachedStream(byte[] cmsSignedData, InputStream data)
+			throws GeneralSecurityException, OperatorCreationException, CMSException, IOException {
+		DigestCalculatorProvider digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder()
+				.setProvider("BC")
+				.build();
+		CMSSignedDataParser parser = new CMSSignedDataParser(digestCalculatorProvider,
+				new CMSTypedStream(new BufferedInputStream(data, BUFFER_SIZE)), cmsSignedData);
+		try {
+			// digests are calculated while content is read
+			parser.getSignedContent().drain();
+			// parser gives raw store, certificates in it are X509CertificateHolder
+			@SuppressWarnings("unchecked")
+			Store<X509CertificateHolder> certificates = parser.getCertificates();
+			return verifySigners(certificates, parser.getSignerInfos());
+		} finally {
+			parser.close();
+		}
+	}
+	
+	/**
+	 * Verifiers of signer certificates shared by all verifications
+	 */
+	public static VerifierCache getVerifierCache() {
+		return verifierCache;
+	}
+	
+	static boolean verifySigners(Store<X509CertificateHolder> certStore,
+			SignerInformationStore signerInformationStore)
+			throws OperatorCreationException, CMSException, GeneralSecurityException, IOException {
 		Collection<SignerInformation> signers = signerInformationStore.getSigners();
 		Iterator<SignerInformation> it = signers.iterator();
 		while (it.hasNext()) {
@@ -117,47 +225,19 @@ public class Verify {
 			Collection<X509CertificateHolder> certCollection = certStore.getMatches(signer.getSID());
 			Iterator<X509CertificateHolder> certIt = certCollection.iterator();
 			X509CertificateHolder cert = (X509CertificateHolder) certIt.next();
-			if (!signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(cert))) {
+			if (!signer.verify(verifierCache.getVerifier(cert))) {
 				return false;
 			}
 		}
 		return true;
 	}
 	
+	/**
+	 * @return true if document has signatures and all of them are valid
+	 */
 	public static boolean verifyPdf(File signedFile) throws Exception {
-		boolean isSignature = false;
-        // We load the signed document.
-        PDDocument document = PDDocument.load(signedFile);
-        List<PDSignature> signatureDictionaries = document.getSignatureDictionaries();
-        // Then we validate signatures one at the time.
-        for (PDSignature signatureDictionary : signatureDictionaries) {
-            // NOTE that this code currently supports only "adbe.pkcs7.detached", the most common signature /SubFilter anyway.
-            byte[] signatureContent = signatureDictionary.getContents(new FileInputStream(signedFile));
-            byte[] signedContent = signatureDictionary.getSignedContent(new FileInputStream(signedFile));
-            // Now we construct a PKCS #7 or CMS.
-            CMSProcessable cmsProcessableInputStream = new CMSProcessableByteArray(signedContent);
-            CMSSignedData cmsSignedData = new CMSSignedData(cmsProcessableInputStream, signatureContent);
-            SignerInformationStore signerInformationStore = cmsSignedData.getSignerInfos();
-            Collection<SignerInformation> signers = signerInformationStore.getSigners();
-            Store<X509CertificateHolder> certs = cmsSignedData.getCertificates();
-            Iterator<SignerInformation> it = signers.iterator();
-            while (it.hasNext()) {
-                SignerInformation signer = (SignerInformation) it.next();
-                Collection<X509CertificateHolder> certificates = certs.getMatches(signer.getSID());
-                Iterator<X509CertificateHolder> certIt = certificates.iterator();
-                X509CertificateHolder signerCertificate = (X509CertificateHolder) certIt.next();
-                // And here we validate the document signature.
-                SignerInformationVerifier signerInformationVerifier = new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(signerCertificate);
-                if (signer.verify(signerInformationVerifier)) {
-                    System.out.println("PDF signature verification is correct.");
-                    isSignature = true;
-                } else {
-                    System.out.println("PDF signature verification failed.");
-                    return false;
-                }
-            }
-        }
-        return isSignature;
+		List<PdfSignatureResult> results = PdfVerifier.verify(signedFile, 1);
+		return !results.isEmpty() && results.stream().allMatch(PdfSignatureResult::isValid);
 	}
 	
 	static Options createOptions() {
@@ -200,6 +280,32 @@ public class Verify {
 				.build();
 		clOptions.addOption(pdfAttachedOption);
 		
+		CliOptions.createBatchOptions().getOptions().forEach(clOptions::addOption);
+		
+		Option reportOption = Option.builder()
+				.longOpt(CliOptions.REPORT)
+				.argName("./report.csv")
+				.desc("Bulk verification report file. Standard output by default")
+				.hasArg(true)
+				.build();
+		clOptions.addOption(reportOption);
+		
+		Option reportFormatOption = Option.builder()
+				.longOpt(CliOptions.REPORT_FORMAT)
+				.argName("csv|json")
+				.desc("Bulk verification report format: CSV or JSON lines")
+				.hasArg(true)
+				.build();
+		clOptions.addOption(reportFormatOption);
+		
+		Option checkpointOption = Option.builder()
+				.longOpt(CliOptions.CHECKPOINT)
+				.argName("./verify.checkpoint")
+				.desc("File with paths verified as OK. Bulk verification skips them and goes on after interruption")
+				.hasArg(true)
+				.build();
+		clOptions.addOption(checkpointOption);
+		
 		return clOptions;
 	}
 	
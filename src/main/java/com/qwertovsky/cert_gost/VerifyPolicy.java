@@ -0,0 +1,106 @@
+package com.qwertovsky.cert_gost;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Which signed documents are verified after signing.
+ * <p>
+ * Sampled policy verifies every document with the given percent evenly, e.g. 25% verifies every 4th document.
+ * In-memory policy verifies every signature against the digest calculated while signing,
+ * files are not read again.
+ */
+public class VerifyPolicy {
+
+	public enum Mode {
+		OFF,
+		FULL,
+		SAMPLED,
+		IN_MEMORY
+	}
+
+	private final Mode mode;
+	private final int percent;
+	private final AtomicLong counter = new AtomicLong();
+
+	private VerifyPolicy(Mode mode, int percent) {
+		this.mode = mode;
+		this.percent = percent;
+	}
+
+	public static VerifyPolicy off() {
+		return new VerifyPolicy(Mode.OFF, 0);
+	}
+
+	public static VerifyPolicy full() {
+		return new VerifyPolicy(Mode.FULL, 100);
+	}
+
+	public static VerifyPolicy inMemory() {
+		return new VerifyPolicy(Mode.IN_MEMORY, 100);
+	}
+
+	public static VerifyPolicy sampled(int percent) {
+		if (percent < 0 || percent > 100) {
+			throw new IllegalArgumentException("Percent should be from 0 to 100: " + percent);
+		}
+		return new VerifyPolicy(Mode.SAMPLED, percent);
+	}
+
+	/**
+	 * @param value off, full, memory or percent of verified documents like 10%
+	 */
+	public static VerifyPolicy parse(String value) {
+		String policy = value.strip().toLowerCase();
+		if (policy.endsWith("%")) {
+			return sampled(Integer.parseInt(policy.substring(0, policy.length() - 1)));
+		}
+		switch (policy) {
+			case "off":
+				return off();
+			case "full":
+				return full();
+			case "memory":
+				return inMemory();
+			default:
+				throw new IllegalArgumentException("Unknown verification policy: " + value);
+		}
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public boolean isInMemory() {
+		return mode == Mode.IN_MEMORY;
+	}
+
+	/**
+	 * Decide if the next signed document should be verified
+	 */
+	public boolean shouldVerify() {
+		switch (mode) {
+			case FULL:
+			case IN_MEMORY:
+				return true;
+			case SAMPLED:
+				long n = counter.getAndIncrement();
+				// true when n * percent / 100 reaches next integer
+				return (n + 1) * percent / 100 > n * percent / 100;
+			case OFF:
+			default:
+				return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		switch (mode) {
+			case SAMPLED:
+				return percent + "%";
+			case IN_MEMORY:
+				return "memory";
+			default:
+				return mode.name().toLowerCase();
+		}
+	}
+}
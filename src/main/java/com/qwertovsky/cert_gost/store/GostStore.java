@@ -18,6 +18,13 @@ public interface GostStore {
 
 	Digest getDigest(AlgorithmIdentifier digestAlg) throws Exception;
 	
+	/**
+	 * @return true if sign and digest methods may be called from several threads at once
+	 */
+	default boolean isThreadSafe() {
+		return false;
+	}
+	
 	default AlgorithmIdentifier getSignatureAlgorithm(X509CertificateHolder certificateHolder) throws Exception {
 		AlgorithmIdentifier result = null;
 		AlgorithmIdentifier algorithm = certificateHolder.getSubjectPublicKeyInfo().getAlgorithm();
@@ -0,0 +1,458 @@
+package com.qwertovsky.cert_gost.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.RuntimeCryptoException;
+
+import com.sun.jna.NativeLong;
+
+import ru.rutoken.pkcs11jna.CK_TOKEN_INFO;
+import ru.rutoken.pkcs11jna.Pkcs11;
+import ru.rutoken.samples.pkcs11utils.Pkcs11Exception;
+import ru.rutoken.samples.pkcs11utils.Pkcs11Operations;
+import ru.rutoken.samples.pkcs11utils.RtPkcs11Memory;
+
+/**
+ * The same certificate on several tokens. Signatures are spread across the tokens.
+ * <p>
+ * A token that fails with device error is taken out of rotation for {@link #QUARANTINE_MILLIS},
+ * the signature is retried on the next token. Token digest is retried too while its input
+ * is not larger than {@link #REPLAY_LIMIT}. Interrupted wait for a session is not a token failure.
+ */
+public class MultiTokenStore implements GostStore, AutoCloseable {
+
+	static final long QUARANTINE_MILLIS = 30_000;
+	// input of token digest kept to repeat it on the next token
+	static final int REPLAY_LIMIT = 1024 * 1024;
+
+	public enum Balancing {
+		ROUND_ROBIN,
+		LEAST_LOADED;
+
+		public static Balancing byName(String name) {
+			return valueOf(name.toUpperCase().replace('-', '_'));
+		}
+	}
+
+	private final RtPkcs11Memory pkcs11;
+	private final List<Token> tokens;
+	private final Balancing balancing;
+	private final AtomicInteger next = new AtomicInteger();
+	private final X509CertificateHolder certificateHolder;
+	private volatile boolean tokenDigest = false;
+
+	/**
+	 * Log in to tokens and find the certificate on them.
+	 * @param serials serial numbers of tokens to use. All tokens with the certificate are used if it is empty
+	 * @param certId certificate id on tokens, or null if certFile is given
+	 * @param certFile certificate file, or null if certId is given
+	 * @param sessions number of sessions on every token
+	 * @param cache token objects found on previous runs, null to find them on every token
+	 */
+	public static MultiTokenStore open(RtPkcs11Memory pkcs11, List<String> serials, byte[] userPin,
+			String certId, File certFile, int sessions, Balancing balancing, PkcsCache cache) throws Exception {
+		List<Token> tokens = new ArrayList<>();
+		try {
+			NativeLong[] slots = Pkcs11Operations.getSlotList(pkcs11, true);
+			List<CK_TOKEN_INFO> tokenInfos = Pkcs11Operations.getTokenInfos(pkcs11, slots);
+			for (int i = 0; i < slots.length; i++) {
+				String serial = Pkcs11Operations.getTokenSerial(tokenInfos.get(i));
+				if (!serials.isEmpty() && !serials.contains(serial)) {
+					continue;
+				}
+				Token token;
+				try {
+					token = Token.open(pkcs11, slots[i], serial, userPin, certId, certFile, sessions, cache);
+				} catch (Exception e) {
+					if (!serials.isEmpty()) {
+						throw new Exception("Token " + serial + " can't be used", e);
+					}
+					System.out.println("Token " + serial + " is skipped: " + e.getMessage());
+					continue;
+				}
+				if (!tokens.isEmpty()
+						&& !tokens.get(0).store.getCertificateHolder().equals(token.store.getCertificateHolder())) {
+					// CMS signer takes the certificate once, every token has to sign with the same key
+					token.close(pkcs11);
+					if (!serials.isEmpty()) {
+						throw new Exception("Token " + serial + " has another certificate");
+					}
+					System.out.println("Token " + serial + " is skipped: another certificate");
+					continue;
+				}
+				tokens.add(token);
+			}
+			if (tokens.isEmpty()) {
+				throw new Exception("Token with certificate not found");
+			}
+			for (String serial : serials) {
+				if (tokens.stream().noneMatch(t -> t.serial.equals(serial))) {
+					throw new Exception("Token not found: " + serial);
+				}
+			}
+		} catch (Exception e) {
+			for (Token token : tokens) {
+				token.close(pkcs11);
+			}
+			throw e;
+		}
+		System.out.println("Signing with " + tokens.size() + " tokens");
+		return new MultiTokenStore(pkcs11, tokens, balancing);
+	}
+
+	private MultiTokenStore(RtPkcs11Memory pkcs11, List<Token> tokens, Balancing balancing) throws Exception {
+		this.pkcs11 = pkcs11;
+		this.tokens = tokens;
+		this.balancing = balancing;
+		this.certificateHolder = tokens.get(0).store.getCertificateHolder();
+	}
+
+	@Override
+	public byte[] signRaw(byte[] data) throws Exception {
+		return execute(token -> token.store.signRaw(data));
+	}
+
+	@Override
+	public X509CertificateHolder getCertificateHolder() throws Exception {
+		return certificateHolder;
+	}
+
+	@Override
+	public List<X509CertificateHolder> getCertChain() throws Exception {
+		return execute(token -> token.store.getCertChain());
+	}
+
+	@Override
+	public Digest getDigest(AlgorithmIdentifier digestAlg) throws Exception {
+		Digest digest = tokens.get(0).store.getDigest(digestAlg);
+		if (!tokenDigest) {
+			// Bouncy Castle digest, tokens are not used
+			return digest;
+		}
+		// digest doesn't depend on the key - any token in rotation will do
+		return new FailoverDigest(digestAlg, digest);
+	}
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
+	/**
+	 * @see PkcsStore#setTokenDigest(boolean)
+	 */
+	public void setTokenDigest(boolean tokenDigest) {
+		this.tokenDigest = tokenDigest;
+		for (Token token : tokens) {
+			token.store.setTokenDigest(tokenDigest);
+		}
+	}
+
+	public List<String> getSerials() {
+		List<String> serials = new ArrayList<>();
+		for (Token token : tokens) {
+			serials.add(token.serial);
+		}
+		return serials;
+	}
+
+	@Override
+	public void close() {
+		for (Token token : tokens) {
+			token.close(pkcs11);
+		}
+	}
+
+	private <T> T execute(TokenAction<T> action) throws Exception {
+		Exception failure = null;
+		for (Token token : schedule()) {
+			token.inFlight.incrementAndGet();
+			try {
+				T result = action.run(token);
+				token.quarantinedUntil = 0;
+				return result;
+			} catch (InterruptedException e) {
+				// waiting for a session of healthy token
+				Thread.currentThread().interrupt();
+				throw e;
+			} catch (Pkcs11Exception | RuntimeCryptoException e) {
+				token.quarantine(e);
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			} finally {
+				token.inFlight.decrementAndGet();
+			}
+		}
+		throw new Exception("All tokens have failed", failure);
+	}
+
+	/**
+	 * Tokens in rotation ordered by balancing policy.
+	 * If all tokens are out of rotation they are tried anyway, the earliest quarantined first.
+	 */
+	private List<Token> schedule() {
+		long now = System.currentTimeMillis();
+		List<Token> available = new ArrayList<>();
+		for (Token token : tokens) {
+			if (token.quarantinedUntil <= now) {
+				available.add(token);
+			}
+		}
+		if (available.isEmpty()) {
+			available.addAll(tokens);
+			available.sort(Comparator.comparingLong(t -> t.quarantinedUntil));
+			return available;
+		}
+		switch (balancing) {
+			case LEAST_LOADED:
+				available.sort(Comparator.comparingInt(t -> t.inFlight.get()));
+				break;
+			case ROUND_ROBIN:
+			default:
+				Collections.rotate(available, -Math.floorMod(next.getAndIncrement(), available.size()));
+				break;
+		}
+		return available;
+	}
+
+	/**
+	 * Digest on token chosen by balancing policy when the first input comes.
+	 * The token is counted in flight till doFinal, reset or close.
+	 * A token that fails is taken out of rotation, and the digest goes on on the next token
+	 * with the input given so far, if the input is not larger than {@link #REPLAY_LIMIT}.
+	 */
+	private class FailoverDigest implements Digest, Closeable {
+		private final AlgorithmIdentifier digestAlg;
+		private final String algorithmName;
+		private final int digestSize;
+		private final ByteArrayOutputStream replay = new ByteArrayOutputStream();
+		// input of update(byte) for replay buffer
+		private final byte[] oneByte = new byte[1];
+		private boolean replayable = true;
+		private List<Token> candidates;
+		private int nextCandidate;
+		private Token token;
+		private Digest digest;
+
+		FailoverDigest(AlgorithmIdentifier digestAlg, Digest prototype) {
+			this.digestAlg = digestAlg;
+			this.algorithmName = prototype.getAlgorithmName();
+			this.digestSize = prototype.getDigestSize();
+		}
+
+		@Override
+		public String getAlgorithmName() {
+			return algorithmName;
+		}
+
+		@Override
+		public int getDigestSize() {
+			return digestSize;
+		}
+
+		@Override
+		public void update(byte in) {
+			run(d -> {
+				d.update(in);
+				return 0;
+			});
+			oneByte[0] = in;
+			keep(oneByte, 0, 1);
+		}
+
+		@Override
+		public void update(byte[] in, int inOff, int len) {
+			run(d -> {
+				d.update(in, inOff, len);
+				return 0;
+			});
+			keep(in, inOff, len);
+		}
+
+		@Override
+		public int doFinal(byte[] out, int outOff) {
+			try {
+				int length = run(d -> d.doFinal(out, outOff));
+				token.quarantinedUntil = 0;
+				return length;
+			} finally {
+				reset();
+			}
+		}
+
+		@Override
+		public void reset() {
+			close();
+			replay.reset();
+			replayable = true;
+			candidates = null;
+		}
+
+		@Override
+		public void close() {
+			if (token == null) {
+				return;
+			}
+			try {
+				if (digest instanceof Closeable) {
+					((Closeable) digest).close();
+				} else {
+					digest.reset();
+				}
+			} catch (IOException | RuntimeException e) {
+				// the digest is not used anymore
+			} finally {
+				token.inFlight.decrementAndGet();
+				token = null;
+				digest = null;
+			}
+		}
+
+		private void keep(byte[] in, int inOff, int len) {
+			if (!replayable) {
+				return;
+			}
+			if (replay.size() + len > REPLAY_LIMIT) {
+				replayable = false;
+				replay.reset();
+				return;
+			}
+			replay.write(in, inOff, len);
+		}
+
+		/**
+		 * Run the step on current token. If the token fails, the input kept so far and the step
+		 * are repeated on the next token.
+		 */
+		private int run(DigestStep step) {
+			RuntimeCryptoException failure = null;
+			while (true) {
+				try {
+					if (digest == null) {
+						start(failure);
+					}
+					return step.run(digest);
+				} catch (RuntimeCryptoException e) {
+					if (token == null || Thread.currentThread().isInterrupted()) {
+						// no token to start on, or waiting for a session was interrupted
+						close();
+						throw e;
+					}
+					String serial = token.serial;
+					token.quarantine(e);
+					close();
+					if (!replayable) {
+						RuntimeCryptoException tooLarge = new RuntimeCryptoException("Token " + serial
+								+ " has failed, digest input is too large to repeat on another token");
+						tooLarge.initCause(e);
+						throw tooLarge;
+					}
+					if (failure == null) {
+						failure = new RuntimeCryptoException("All tokens have failed");
+						failure.initCause(e);
+					} else {
+						failure.addSuppressed(e);
+					}
+				} catch (RuntimeException e) {
+					// not a token failure
+					close();
+					throw e;
+				}
+			}
+		}
+
+		private void start(RuntimeCryptoException failure) {
+			if (candidates == null) {
+				candidates = schedule();
+				nextCandidate = 0;
+			}
+			if (nextCandidate == candidates.size()) {
+				throw failure;
+			}
+			Token candidate = candidates.get(nextCandidate++);
+			Digest candidateDigest;
+			try {
+				candidateDigest = candidate.store.getDigest(digestAlg);
+			} catch (Exception e) {
+				// algorithm was found on the first token
+				throw new IllegalStateException(e);
+			}
+			candidate.inFlight.incrementAndGet();
+			token = candidate;
+			digest = candidateDigest;
+			if (replay.size() > 0) {
+				byte[] input = replay.toByteArray();
+				digest.update(input, 0, input.length);
+			}
+		}
+	}
+
+	private static class Token {
+		private final String serial;
+		private final NativeLong loginSession;
+		private final PkcsSessionPool sessionPool;
+		private final PkcsStore store;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private volatile long quarantinedUntil;
+
+		private Token(String serial, NativeLong loginSession, PkcsSessionPool sessionPool, PkcsStore store) {
+			this.serial = serial;
+			this.loginSession = loginSession;
+			this.sessionPool = sessionPool;
+			this.store = store;
+		}
+
+		static Token open(RtPkcs11Memory pkcs11, NativeLong slot, String serial, byte[] userPin,
+				String certId, File certFile, int sessions, PkcsCache cache) throws Exception {
+			NativeLong loginSession = Pkcs11Operations.loginToToken(pkcs11, slot, userPin);
+			PkcsSessionPool sessionPool = null;
+			try {
+				sessionPool = new PkcsSessionPool(pkcs11, slot, loginSession, sessions);
+				PkcsStore store = certId != null
+						? new PkcsStore(pkcs11, sessionPool, certId, cache, serial)
+						: new PkcsStore(pkcs11, sessionPool, certFile, cache, serial);
+				return new Token(serial, loginSession, sessionPool, store);
+			} catch (Exception e) {
+				if (sessionPool != null) {
+					sessionPool.close();
+				}
+				Pkcs11Operations.logoutAndCloseSession(pkcs11, loginSession);
+				throw e;
+			}
+		}
+
+		void quarantine(Exception e) {
+			quarantinedUntil = System.currentTimeMillis() + QUARANTINE_MILLIS;
+			System.err.println("Token " + serial + " is out of rotation: " + e.getMessage());
+		}
+
+		void close(Pkcs11 pkcs11) {
+			sessionPool.close();
+			Pkcs11Operations.logoutAndCloseSession(pkcs11, loginSession);
+		}
+	}
+
+	@FunctionalInterface
+	private interface TokenAction<T> {
+		T run(Token token) throws Exception;
+	}
+
+	@FunctionalInterface
+	private interface DigestStep {
+		int run(Digest digest);
+	}
+}
@@ -2,11 +2,13 @@ package com.qwertovsky.cert_gost.store;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
@@ -19,47 +21,79 @@ import org.bouncycastle.operator.bc.BcDefaultDigestProvider;
 
 public class PfxStore implements GostStore {
 	
-	private KeyStore keyStore;
-	private String alias;
-	
+	private final X509CertificateHolder certificateHolder;
+	private final List<X509CertificateHolder> certChain;
+	private final PrivateKey privateKey;
+	private final AlgorithmIdentifier signatureAlgorithm;
+	private final String signatureAlgorithmName;
+	// initialized Signature for every signing thread
+	private final ThreadLocal<Signature> signatures = new ThreadLocal<>();
+
 	public PfxStore(File pfxFile, String alias, char[] pin) throws Exception {
-		this.keyStore = KeyStore.getInstance("PKCS12", "BC");
+		KeyStore keyStore = KeyStore.getInstance("PKCS12", "BC");
 		try (FileInputStream fis = new FileInputStream(pfxFile)) {
 			keyStore.load(fis, pin);
 		}
-		this.alias = alias;
-	}
 
+		Certificate certificate = keyStore.getCertificate(alias);
+		if (certificate == null) {
+			throw new Exception("Certificate not found: " + alias);
+		}
+		this.certificateHolder = new X509CertificateHolder(certificate.getEncoded());
+
+		this.privateKey = (PrivateKey) keyStore.getKey(alias, null);
+		if (this.privateKey == null) {
+			throw new Exception("Private key not found: " + alias);
+		}
+
+		List<X509CertificateHolder> chain = new ArrayList<>();
+		for (Certificate cert : keyStore.getCertificateChain(alias)) {
+			chain.add(new X509CertificateHolder(cert.getEncoded()));
+		}
+		this.certChain = Collections.unmodifiableList(chain);
+
+		this.signatureAlgorithm = getSignatureAlgorithm(this.certificateHolder);
+		this.signatureAlgorithmName = new DefaultSignatureNameFinder().getAlgorithmName(this.signatureAlgorithm);
+	}
+	
 	@Override
-	public X509CertificateHolder getCertificateHolder() throws Exception {
-		Certificate certificate = this.keyStore.getCertificate(this.alias);
-		return new X509CertificateHolder(certificate.getEncoded());
+	public X509CertificateHolder getCertificateHolder() {
+		return certificateHolder;
 	}
-
+	
 	@Override
-	public List<X509CertificateHolder> getCertChain() throws Exception {
-		List<X509CertificateHolder> result = new ArrayList<>();
-		Certificate[] chain = this.keyStore.getCertificateChain(this.alias);
-		for (Certificate cert : chain) {
-			result.add(new X509CertificateHolder(cert.getEncoded()));
-		}
-		return result;
+	public List<X509CertificateHolder> getCertChain() {
+		return certChain;
 	}
 	
-	private PrivateKey getPrivateKey() throws Exception {
-		return (PrivateKey) this.keyStore.getKey(this.alias, null);
+	@Override
+	public AlgorithmIdentifier getSignatureAlgorithm() {
+		return signatureAlgorithm;
 	}
-
+	
+	private Signature getSignature() throws GeneralSecurityException {
+		Signature sig = signatures.get();
+		if (sig == null) {
+			sig = Signature.getInstance(signatureAlgorithmName, BouncyCastleProvider.PROVIDER_NAME);
+			sig.initSign(privateKey);
+			signatures.set(sig);
+		}
+		return sig;
+	}
+	
 	@Override
 	public byte[] signRaw(byte[] data) {
 		try {
-			AlgorithmIdentifier algId = getSignatureAlgorithm();
-			String algorithmName = new DefaultSignatureNameFinder().getAlgorithmName(algId);
-			Signature sig;
-			sig = Signature.getInstance(algorithmName, BouncyCastleProvider.PROVIDER_NAME);
-			sig.initSign(getPrivateKey());
-			sig.update(data);
-			return sig.sign();
+			Signature sig = getSignature();
+			try {
+				sig.update(data);
+				// sign() resets the signature to the initialized state
+				return sig.sign();
+			} catch (Exception e) {
+				// state is unknown
+				signatures.remove();
+				throw e;
+			}
 		} catch (Exception e) {
 			throw new RuntimeException("Sign raw", e);
 		}
@@ -70,5 +104,11 @@ public class PfxStore implements GostStore {
 		ExtendedDigest digest = BcDefaultDigestProvider.INSTANCE.get(digestAlg);
 		return digest;
 	}
-
+	
+	@Override
+	public boolean isThreadSafe() {
+		// every thread has own Signature, Digest is created for every call
+		return true;
+	}
+	
 }
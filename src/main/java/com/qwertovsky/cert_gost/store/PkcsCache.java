@@ -0,0 +1,160 @@
+package com.qwertovsky.cert_gost.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Token objects found on previous runs: signer certificate, its chain and id of private key.
+ * <p>
+ * Entries are keyed by token serial and certificate id or certificate fingerprint.
+ * There are only public data in the file. Object handles are not stored, they are valid in one application only.
+ */
+public class PkcsCache {
+
+	private static final String CERTIFICATE = ".certificate";
+	private static final String CHAIN = ".chain";
+	private static final String KEY_ID = ".key-id";
+
+	private final File file;
+	private final Properties properties = new Properties();
+
+	private PkcsCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Read cache file. Missing or broken file gives empty cache.
+	 */
+	public static PkcsCache load(File file) {
+		PkcsCache cache = new PkcsCache(file);
+		if (file.exists()) {
+			try (FileInputStream fis = new FileInputStream(file)) {
+				cache.properties.load(fis);
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println("PKCS cache is ignored: " + e.getMessage());
+				cache.properties.clear();
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Key of certificate given by id on token
+	 */
+	public static String idKey(String certId) {
+		return "id-" + Hex.toHexString(certId.getBytes());
+	}
+
+	/**
+	 * Key of certificate given by file
+	 */
+	public static String fingerprintKey(byte[] certificate) throws NoSuchAlgorithmException {
+		return "sha256-" + Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(certificate));
+	}
+
+	/**
+	 * @return entry or null if there is no entry or it can't be decoded
+	 */
+	public synchronized Entry get(String serial, String key) {
+		String prefix = serial + "/" + key;
+		String certificate = properties.getProperty(prefix + CERTIFICATE);
+		String chain = properties.getProperty(prefix + CHAIN);
+		String keyId = properties.getProperty(prefix + KEY_ID);
+		if (certificate == null || chain == null || keyId == null) {
+			return null;
+		}
+		try {
+			Base64.Decoder decoder = Base64.getDecoder();
+			List<byte[]> chainCertificates = new ArrayList<>();
+			for (String value : chain.split(",")) {
+				if (!value.isEmpty()) {
+					chainCertificates.add(decoder.decode(value));
+				}
+			}
+			return new Entry(decoder.decode(certificate), chainCertificates, decoder.decode(keyId));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Add or replace the entry and write the file
+	 */
+	public synchronized void put(String serial, String key, Entry entry) throws IOException {
+		String prefix = serial + "/" + key;
+		Base64.Encoder encoder = Base64.getEncoder();
+		List<String> chain = new ArrayList<>();
+		for (byte[] certificate : entry.chain) {
+			chain.add(encoder.encodeToString(certificate));
+		}
+		properties.setProperty(prefix + CERTIFICATE, encoder.encodeToString(entry.certificate));
+		properties.setProperty(prefix + CHAIN, String.join(",", chain));
+		properties.setProperty(prefix + KEY_ID, encoder.encodeToString(entry.keyId));
+		save();
+	}
+
+	public synchronized void remove(String serial, String key) throws IOException {
+		String prefix = serial + "/" + key;
+		properties.remove(prefix + CERTIFICATE);
+		properties.remove(prefix + CHAIN);
+		properties.remove(prefix + KEY_ID);
+		save();
+	}
+
+	private void save() throws IOException {
+		// concurrent runs read either old or new file
+		File directory = file.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+				properties.store(fos, "gost_sign token objects");
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempFile.toPath());
+		}
+	}
+
+	public static class Entry {
+		private final byte[] certificate;
+		private final List<byte[]> chain;
+		private final byte[] keyId;
+
+		/**
+		 * @param certificate DER of signer certificate
+		 * @param chain DER of issuer certificates, signer certificate is not included
+		 * @param keyId CKA_ID of private key
+		 */
+		public Entry(byte[] certificate, List<byte[]> chain, byte[] keyId) {
+			this.certificate = certificate;
+			this.chain = Collections.unmodifiableList(chain);
+			this.keyId = keyId;
+		}
+
+		public byte[] getCertificate() {
+			return certificate;
+		}
+
+		public List<byte[]> getChain() {
+			return chain;
+		}
+
+		public byte[] getKeyId() {
+			return keyId;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.qwertovsky.cert_gost.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.sun.jna.NativeLong;
+
+import ru.rutoken.pkcs11jna.Pkcs11;
+import ru.rutoken.samples.pkcs11utils.Pkcs11Exception;
+import ru.rutoken.samples.pkcs11utils.Pkcs11Operations;
+
+/**
+ * Sessions on one token. Every operation borrows a session for its whole duration,
+ * so C_DigestInit/C_SignInit state of concurrent operations is not mixed.
+ * <p>
+ * Login state is shared by all sessions of the application, so user logs in once with the first session.
+ */
+public class PkcsSessionPool implements AutoCloseable {
+
+	private final Pkcs11 pkcs11;
+	private final int size;
+	// sessions opened by pool, the login session is closed by its owner
+	private final List<NativeLong> ownSessions = new ArrayList<>();
+	private final BlockingQueue<NativeLong> idleSessions;
+
+	/**
+	 * Pool of one session
+	 */
+	public PkcsSessionPool(Pkcs11 pkcs11, NativeLong session) {
+		this.pkcs11 = pkcs11;
+		this.size = 1;
+		this.idleSessions = new ArrayBlockingQueue<>(1);
+		this.idleSessions.add(session);
+	}
+
+	/**
+	 * @param slot token slot of login session
+	 * @param loginSession session with logged in user
+	 * @param size number of sessions including login session
+	 */
+	public PkcsSessionPool(Pkcs11 pkcs11, NativeLong slot, NativeLong loginSession, int size) throws Pkcs11Exception {
+		if (size < 1) {
+			throw new IllegalArgumentException("Number of sessions should be positive: " + size);
+		}
+		this.pkcs11 = pkcs11;
+		this.size = size;
+		this.idleSessions = new ArrayBlockingQueue<>(size);
+		this.idleSessions.add(loginSession);
+		try {
+			for (int i = 1; i < size; i++) {
+				NativeLong session = Pkcs11Operations.openSession(pkcs11, slot);
+				ownSessions.add(session);
+				idleSessions.add(session);
+			}
+		} catch (Pkcs11Exception e) {
+			close();
+			throw e;
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Sessions not borrowed at the moment
+	 */
+	int getIdleCount() {
+		return idleSessions.size();
+	}
+
+	/**
+	 * Wait for a free session. It should be given back with {@link #release(NativeLong)}.
+	 */
+	public NativeLong borrow() throws InterruptedException {
+		return idleSessions.take();
+	}
+
+	public void release(NativeLong session) {
+		idleSessions.add(session);
+	}
+
+	public <T> T execute(SessionAction<T> action) throws Exception {
+		NativeLong session = borrow();
+		try {
+			return action.run(session);
+		} finally {
+			release(session);
+		}
+	}
+
+	@Override
+	public void close() {
+		for (NativeLong session : ownSessions) {
+			pkcs11.C_CloseSession(session);
+		}
+		ownSessions.clear();
+	}
+
+	@FunctionalInterface
+	public interface SessionAction<T> {
+		T run(NativeLong session) throws Exception;
+	}
+}
@@ -1,12 +1,22 @@
 package com.qwertovsky.cert_gost.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.ref.Cleaner;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.x500.RDN;
@@ -14,87 +24,266 @@ import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.asn1.x509.DigestInfo;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.RuntimeCryptoException;
+import org.bouncycastle.operator.bc.BcDefaultDigestProvider;
 
-import com.qwertovsky.cert_gost.StreamDigestCalculator;
 import com.sun.jna.NativeLong;
 
 import ru.rutoken.pkcs11jna.CK_ATTRIBUTE;
-import ru.rutoken.pkcs11jna.Pkcs11;
 import ru.rutoken.pkcs11jna.Pkcs11Constants;
 import ru.rutoken.samples.bouncycastle.bcprimitives.RtDigest;
 import ru.rutoken.samples.pkcs11utils.DigestAlgorithm;
+import ru.rutoken.samples.pkcs11utils.Pkcs11Exception;
 import ru.rutoken.samples.pkcs11utils.Pkcs11Operations;
 import ru.rutoken.samples.pkcs11utils.Pkcs11Signer;
+import ru.rutoken.samples.pkcs11utils.RtPkcs11Memory;
 import ru.rutoken.samples.pkcs11utils.SignAlgorithm;
 
+/**
+ * Key and certificates on token.
+ * <p>
+ * Sessions and object handles are not valid after the token is removed, even if it is inserted again.
+ * The store and signers created with it have to be created again then,
+ * see {@link Pkcs11Exception#isTokenRemoved()}.
+ */
 public class PkcsStore implements GostStore {
 	
-	private final Pkcs11 pkcs11;
-	private final NativeLong session;
+	private static final ASN1ObjectIdentifier OGRN = new ASN1ObjectIdentifier("1.2.643.100.1");
+	// gives back sessions of token digests dropped without doFinal
+	private static final Cleaner CLEANER = Cleaner.create();
+	
+	private final RtPkcs11Memory pkcs11;
+	private final PkcsSessionPool sessionPool;
 	private final X509CertificateHolder certificateHolder;
+	// handle of token object is valid in every session of the application
 	private NativeLong privateKey;
-	private Pkcs11Signer pkcs11Signer;
-	private StreamDigestCalculator digestCalculator;
+	private SignAlgorithm signAlgorithm;
+	private final Map<Long, Pkcs11Signer> pkcs11Signers = new ConcurrentHashMap<>();
+	// digest with native buffer for every session, it is used by the session owner only
+	private final Map<Long, Map<DigestAlgorithm, RtDigest>> rtDigests = new ConcurrentHashMap<>();
+	// hash on token instead of Bouncy Castle, every byte goes over USB
+	private boolean tokenDigest = false;
+	// chain is read from token once, it is read again after refresh
+	private volatile List<X509CertificateHolder> certChain;
+	
+	public PkcsStore(RtPkcs11Memory pkcs11, NativeLong session, String certId) throws Exception {
+		this(pkcs11, new PkcsSessionPool(pkcs11, session), certId);
+	}
+
+	public PkcsStore(RtPkcs11Memory pkcs11, NativeLong session, File certFile) throws Exception {
+		this(pkcs11, new PkcsSessionPool(pkcs11, session), certFile);
+	}
+	
+	public PkcsStore(RtPkcs11Memory pkcs11, PkcsSessionPool sessionPool, String certId) throws Exception {
+		this(pkcs11, sessionPool, certId, null, null);
+	}
+
+	public PkcsStore(RtPkcs11Memory pkcs11, PkcsSessionPool sessionPool, File certFile) throws Exception {
+		this(pkcs11, sessionPool, certFile, null, null);
+	}
 	
-	public PkcsStore(Pkcs11 pkcs11, NativeLong session, String certId) throws Exception {
+	/**
+	 * @param cache token objects found on previous runs, null to find them on token
+	 * @param serial serial number of token, key of cache entries
+	 */
+	public PkcsStore(RtPkcs11Memory pkcs11, PkcsSessionPool sessionPool, String certId, PkcsCache cache, String serial)
+			throws Exception {
 		this.pkcs11 = pkcs11;
-		this.session = session;
+		this.sessionPool = sessionPool;
 
-		this.certificateHolder = getCertificateHolder(certId);
-		this.init(pkcs11, session, certificateHolder);
+		String cacheKey = PkcsCache.idKey(certId);
+		X509CertificateHolder cachedCertificate = cache == null ? null : readCache(cache, serial, cacheKey, certId);
+		if (cachedCertificate != null) {
+			this.certificateHolder = cachedCertificate;
+		} else {
+			this.certificateHolder = sessionPool.execute(session -> getCertificateHolder(session, certId));
+			this.init(certificateHolder);
+			if (cache != null) {
+				writeCache(cache, serial, cacheKey);
+			}
+		}
 	}
 
-	public PkcsStore(Pkcs11 pkcs11, NativeLong session, File certFile) throws Exception {
+	/**
+	 * @param cache token objects found on previous runs, null to find them on token
+	 * @param serial serial number of token, key of cache entries
+	 */
+	public PkcsStore(RtPkcs11Memory pkcs11, PkcsSessionPool sessionPool, File certFile, PkcsCache cache, String serial)
+			throws Exception {
 		this.pkcs11 = pkcs11;
-		this.session = session;
+		this.sessionPool = sessionPool;
 
 		try(FileInputStream fis = new FileInputStream(certFile)) {
 			Certificate certificate = CertificateFactory.getInstance("X509").generateCertificate(fis);
 			this.certificateHolder = new X509CertificateHolder(certificate.getEncoded());
 		}
-		this.init(pkcs11, session, certificateHolder);
+		String cacheKey = PkcsCache.fingerprintKey(certificateHolder.getEncoded());
+		if (cache == null || readCache(cache, serial, cacheKey, null) == null) {
+			this.init(certificateHolder);
+			if (cache != null) {
+				writeCache(cache, serial, cacheKey);
+			}
+		}
 	}
 
-	private final void init(Pkcs11 pkcs11, NativeLong session, X509CertificateHolder certificateHolder) throws Exception {
-		privateKey = Pkcs11Operations.findPrivateKeyByCertificateValue(pkcs11, session, certificateHolder.getEncoded());
+	private final void init(X509CertificateHolder certificateHolder) throws Exception {
+		privateKey = sessionPool.execute(session ->
+				Pkcs11Operations.findPrivateKeyByCertificateValue(pkcs11, session, certificateHolder.getEncoded()));
 		AlgorithmIdentifier algorithm = getSignatureAlgorithm(certificateHolder);
-		SignAlgorithm signAlgorithm = SignAlgorithm.byAlgorithm(algorithm);
-		pkcs11Signer = new Pkcs11Signer(signAlgorithm, pkcs11, session.longValue(), privateKey.longValue());
-		digestCalculator = new StreamDigestCalculator(getDigest(signAlgorithm.getDigestAlgorithm().getAlgorithmIdentifier()));
+		signAlgorithm = SignAlgorithm.byAlgorithm(algorithm);
+	}
+	
+	/**
+	 * Take private key and chain from cache entry if the token still has the key pair of the certificate.
+	 * Stale entry is removed.
+	 * @param certId id of certificate on token, null if the certificate is given by file
+	 * @return signer certificate, null if there is no valid entry
+	 */
+	private X509CertificateHolder readCache(PkcsCache cache, String serial, String cacheKey, String certId)
+			throws Exception {
+		PkcsCache.Entry entry = cache.get(serial, cacheKey);
+		if (entry == null) {
+			return null;
+		}
+		NativeLong cachedKey = sessionPool.execute(session -> findCachedPrivateKey(session, entry, certId));
+		if (cachedKey == null) {
+			System.out.println("Cached token objects are not found on token " + serial);
+			try {
+				cache.remove(serial, cacheKey);
+			} catch (IOException e) {
+				System.err.println("PKCS cache is not written: " + e.getMessage());
+			}
+			return null;
+		}
+		X509CertificateHolder certificate = new X509CertificateHolder(entry.getCertificate());
+		List<X509CertificateHolder> chain = new ArrayList<>();
+		chain.add(certificate);
+		for (byte[] issuer : entry.getChain()) {
+			chain.add(new X509CertificateHolder(issuer));
+		}
+		privateKey = cachedKey;
+		signAlgorithm = SignAlgorithm.byAlgorithm(getSignatureAlgorithm(certificate));
+		certChain = Collections.unmodifiableList(chain);
+		return certificate;
+	}
+	
+	/**
+	 * Public key is found by value of certificate public key and cached key id, so the key belongs
+	 * to the certificate. The certificate itself may be not on token if it is given by file.
+	 * Certificate given by id is found by its cached value, renewed certificate of the same key makes entry stale.
+	 */
+	private NativeLong findCachedPrivateKey(NativeLong session, PkcsCache.Entry entry, String certId)
+			throws Pkcs11Exception, CertificateException {
+		if (certId != null) {
+			CK_ATTRIBUTE[] certificateTemplate = (CK_ATTRIBUTE[]) (new CK_ATTRIBUTE()).toArray(3);
+			certificateTemplate[0].setAttr(Pkcs11Constants.CKA_CLASS, Pkcs11Constants.CKO_CERTIFICATE);
+			certificateTemplate[1].setAttr(Pkcs11Constants.CKA_ID, certId.getBytes());
+			certificateTemplate[2].setAttr(Pkcs11Constants.CKA_VALUE, entry.getCertificate());
+			if (Pkcs11Operations.findObjects(pkcs11, session, certificateTemplate, 1).length == 0) {
+				return null;
+			}
+		}
+		X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+				.generateCertificate(new ByteArrayInputStream(entry.getCertificate()));
+		CK_ATTRIBUTE[] publicKeyTemplate = Pkcs11Operations.createPublicKeyValueTemplate(certificate, 1);
+		publicKeyTemplate[publicKeyTemplate.length - 1].setAttr(Pkcs11Constants.CKA_ID, entry.getKeyId());
+		if (Pkcs11Operations.findObjects(pkcs11, session, publicKeyTemplate, 1).length == 0) {
+			return null;
+		}
+		CK_ATTRIBUTE[] privateKeyTemplate = (CK_ATTRIBUTE[]) (new CK_ATTRIBUTE()).toArray(2);
+		privateKeyTemplate[0].setAttr(Pkcs11Constants.CKA_CLASS, Pkcs11Constants.CKO_PRIVATE_KEY);
+		privateKeyTemplate[1].setAttr(Pkcs11Constants.CKA_ID, entry.getKeyId());
+		NativeLong[] privateKeys = Pkcs11Operations.findObjects(pkcs11, session, privateKeyTemplate, 1);
+		return privateKeys.length == 0 ? null : privateKeys[0];
+	}
+	
+	private void writeCache(PkcsCache cache, String serial, String cacheKey) throws Exception {
+		byte[] keyId = sessionPool.execute(session -> Pkcs11Operations.getObjectId(pkcs11, session, privateKey));
+		List<X509CertificateHolder> chain = getCertChain();
+		List<byte[]> issuers = new ArrayList<>();
+		for (X509CertificateHolder issuer : chain.subList(1, chain.size())) {
+			issuers.add(issuer.getEncoded());
+		}
+		try {
+			cache.put(serial, cacheKey, new PkcsCache.Entry(certificateHolder.getEncoded(), issuers, keyId));
+		} catch (IOException e) {
+			// signing goes on, the next run finds objects on token again
+			System.err.println("PKCS cache is not written: " + e.getMessage());
+		}
+	}
+	
+	private Pkcs11Signer getSigner(NativeLong session) {
+		return pkcs11Signers.computeIfAbsent(session.longValue(),
+				s -> new Pkcs11Signer(signAlgorithm, pkcs11, s, privateKey.longValue()));
+	}
+	
+	private RtDigest getRtDigest(NativeLong session, DigestAlgorithm digestAlgorithm) {
+		return rtDigests.computeIfAbsent(session.longValue(), s -> new EnumMap<>(DigestAlgorithm.class))
+				.computeIfAbsent(digestAlgorithm, a -> new RtDigest(pkcs11, a, session.longValue()));
+	}
+
+	/**
+	 * @param tokenDigest true to hash on token, false to hash with Bouncy Castle and send to token only the digest
+	 */
+	public void setTokenDigest(boolean tokenDigest) {
+		this.tokenDigest = tokenDigest;
 	}
 
 	@Override
 	public byte[] signRaw(byte[] data) throws Exception {
-		digestCalculator.getOutputStream().write(data);
-	    byte[] digest = digestCalculator.getDigest();
-		if (!pkcs11Signer.getSignAlgorithm().isGost()) {
-            digest = createRsaDigestInfo(digest);
+		if (!tokenDigest) {
+			Digest softDigest = BcDefaultDigestProvider.INSTANCE.get(
+					signAlgorithm.getDigestAlgorithm().getAlgorithmIdentifier());
+			softDigest.update(data, 0, data.length);
+			byte[] hash = new byte[softDigest.getDigestSize()];
+			softDigest.doFinal(hash, 0);
+			byte[] digest = signAlgorithm.isGost() ? hash : createRsaDigestInfo(hash);
+			return sessionPool.execute(session -> getSigner(session).sign(digest));
 		}
-		return pkcs11Signer.sign(digest);
+		// digest and sign in the same session
+		return sessionPool.execute(session -> {
+			RtDigest rtDigest = getRtDigest(session, signAlgorithm.getDigestAlgorithm());
+			byte[] digest = new byte[rtDigest.getDigestSize()];
+			rtDigest.update(data, 0, data.length);
+			rtDigest.doFinal(digest, 0);
+			if (!signAlgorithm.isGost()) {
+	            digest = createRsaDigestInfo(digest);
+			}
+			return getSigner(session).sign(digest);
+		});
 	}
 	
 	private byte[] createRsaDigestInfo(byte[] digest) throws IOException {
-        DigestInfo digestInfo = new DigestInfo(pkcs11Signer.getDigestAlgorithm().getAlgorithmIdentifier(), digest);
+        DigestInfo digestInfo = new DigestInfo(signAlgorithm.getDigestAlgorithm().getAlgorithmIdentifier(), digest);
         return digestInfo.getEncoded();
     }
 
 	@Override
 	public Digest getDigest(AlgorithmIdentifier digestAlg) throws Exception {
+		if (!tokenDigest) {
+			return BcDefaultDigestProvider.INSTANCE.get(digestAlg);
+		}
 		for (DigestAlgorithm alg : DigestAlgorithm.values()) {
 			if (alg.getAlgorithmIdentifier().equals(digestAlg)) {
-				Digest digest = new RtDigest(pkcs11, alg, session.longValue());
+				Digest digest = new PooledDigest(alg);
 				return digest;
 			}
 		}
 		throw new Exception("Digest not found: " + digestAlg.toString());
 	}
 	
+	@Override
+	public boolean isThreadSafe() {
+		// every operation has own session
+		return true;
+	}
+	
 	@Override
 	public X509CertificateHolder getCertificateHolder() throws Exception {
         return certificateHolder;
 	}
 
-	private X509CertificateHolder getCertificateHolder(String certId) throws Exception {
+	private X509CertificateHolder getCertificateHolder(NativeLong session, String certId) throws Exception {
         System.out.println("Finding signer certificate");
         final CK_ATTRIBUTE[] certificateTemplate;
         certificateTemplate = (CK_ATTRIBUTE[]) (new CK_ATTRIBUTE()).toArray(3);
@@ -108,46 +297,182 @@ public class PkcsStore implements GostStore {
         return certificateHolder;
 	}
 
+	/**
+	 * Signer certificate and its issuers found on token. The chain is read from token on the first call only.
+	 */
 	@Override
 	public List<X509CertificateHolder> getCertChain() throws Exception {
-		X509CertificateHolder signer = getCertificateHolder();
-		List<X509CertificateHolder> chain = new ArrayList<>();
-		List<X509CertificateHolder> certificates = Pkcs11Operations.getAllCertificates(this.pkcs11, session);
-		chain.add(signer);
-		chain.addAll(getCertChain(signer, certificates));
-		
+		List<X509CertificateHolder> chain = certChain;
+		if (chain == null) {
+			synchronized (this) {
+				chain = certChain;
+				if (chain == null) {
+					chain = readCertChain();
+					certChain = chain;
+				}
+			}
+		}
 		return chain;
 	}
 	
-	private List<X509CertificateHolder> getCertChain(X509CertificateHolder signer, List<X509CertificateHolder> certificates) throws Exception {
-		List<X509CertificateHolder> chain = new ArrayList<>();
-		ASN1ObjectIdentifier ogrnAttribute = new ASN1ObjectIdentifier("1.2.643.100.1");
-		RDN issuerOgrnRdn = signer.getIssuer().getRDNs(ogrnAttribute)[0];
-		RDN[] subjectOgrnRdn = signer.getSubject().getRDNs(ogrnAttribute);
-		if (subjectOgrnRdn.length > 0 && issuerOgrnRdn.equals(subjectOgrnRdn[0])) {
-			// self issued - end of chain
-			return chain;
-		}
-
+	/**
+	 * Read certificate chain from token on the next {@link #getCertChain()} call,
+	 * e.g. after issuer certificate is written on token
+	 */
+	public void refreshCertChain() {
+		certChain = null;
+	}
+	
+	private List<X509CertificateHolder> readCertChain() throws Exception {
+		X509CertificateHolder signer = getCertificateHolder();
+		List<X509CertificateHolder> certificates = sessionPool.execute(session ->
+				Pkcs11Operations.getAllCertificates(this.pkcs11, session));
+		
+		// issuer certificates by OGRN, the first one on token wins
+		Map<RDN, X509CertificateHolder> issuers = new HashMap<>();
 		for (X509CertificateHolder cert : certificates) {
-			if (signer.equals(cert)) {
-				// self
-				continue;
-			}
-			RDN[] ogrnRdn = cert.getSubject().getRDNs(ogrnAttribute);
+			RDN[] ogrnRdn = cert.getSubject().getRDNs(OGRN);
 			if (ogrnRdn.length == 0) {
 				// personal
 				continue;
 			}
-			if (issuerOgrnRdn.equals(ogrnRdn[0])) {
-				chain.add(cert);
-				chain.addAll(getCertChain(cert, certificates));
+			issuers.putIfAbsent(ogrnRdn[0], cert);
+		}
+		
+		List<X509CertificateHolder> chain = new ArrayList<>();
+		chain.add(signer);
+		X509CertificateHolder cert = signer;
+		while (true) {
+			RDN issuerOgrnRdn = cert.getIssuer().getRDNs(OGRN)[0];
+			RDN[] subjectOgrnRdn = cert.getSubject().getRDNs(OGRN);
+			if (subjectOgrnRdn.length > 0 && issuerOgrnRdn.equals(subjectOgrnRdn[0])) {
+				// self issued - end of chain
+				break;
+			}
+			X509CertificateHolder issuer = issuers.get(issuerOgrnRdn);
+			if (issuer == null || chain.contains(issuer)) {
 				break;
 			}
+			chain.add(issuer);
+			cert = issuer;
 		}
 		
-		return chain;
+		return Collections.unmodifiableList(chain);
 	}
 
 
+	/**
+	 * Token digest. The session is held from the first update till doFinal, reset or close.
+	 * The session is given back when the token fails, and when the digest is garbage collected
+	 * without being finished.
+	 */
+	private class PooledDigest implements Digest, Closeable {
+		private final DigestAlgorithm digestAlgorithm;
+		private BorrowedSession borrowedSession;
+		private Cleaner.Cleanable cleanable;
+		
+		PooledDigest(DigestAlgorithm digestAlgorithm) {
+			this.digestAlgorithm = digestAlgorithm;
+		}
+
+		@Override
+		public String getAlgorithmName() {
+			return digestAlgorithm.getAlgorithmName();
+		}
+
+		@Override
+		public int getDigestSize() {
+			return digestAlgorithm.getDigestSize();
+		}
+
+		@Override
+		public void update(byte in) {
+			try {
+				getRtDigest().update(in);
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void update(byte[] in, int inOff, int len) {
+			try {
+				getRtDigest().update(in, inOff, len);
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public int doFinal(byte[] out, int outOff) {
+			try {
+				return getRtDigest().doFinal(out, outOff);
+			} finally {
+				close();
+			}
+		}
+
+		@Override
+		public void reset() {
+			close();
+		}
+		
+		/**
+		 * Abort unfinished digest operation and give the session back to pool
+		 */
+		@Override
+		public void close() {
+			if (cleanable != null) {
+				cleanable.clean();
+				cleanable = null;
+				borrowedSession = null;
+			}
+		}
+		
+		private RtDigest getRtDigest() {
+			if (borrowedSession == null) {
+				NativeLong session;
+				try {
+					session = sessionPool.borrow();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeCryptoException("Waiting for session was interrupted");
+				}
+				borrowedSession = new BorrowedSession(sessionPool, session,
+						PkcsStore.this.getRtDigest(session, digestAlgorithm));
+				cleanable = CLEANER.register(this, borrowedSession);
+			}
+			return borrowedSession.rtDigest;
+		}
+	}
+	
+	/**
+	 * Session of {@link PooledDigest}. It doesn't refer to the digest, so the digest can be collected.
+	 */
+	private static class BorrowedSession implements Runnable {
+		private final PkcsSessionPool sessionPool;
+		private final NativeLong session;
+		private final RtDigest rtDigest;
+		
+		BorrowedSession(PkcsSessionPool sessionPool, NativeLong session, RtDigest rtDigest) {
+			this.sessionPool = sessionPool;
+			this.session = session;
+			this.rtDigest = rtDigest;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// C_DigestFinal ends active operation, so the next owner can call C_DigestInit
+				rtDigest.reset();
+			} catch (RuntimeException e) {
+				// token failed, the session is given back anyway
+			} finally {
+				sessionPool.release(session);
+			}
+		}
+	}
+
 }
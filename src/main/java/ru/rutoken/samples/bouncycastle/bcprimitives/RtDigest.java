@@ -13,23 +13,47 @@ import com.sun.jna.ptr.NativeLongByReference;
 import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.RuntimeCryptoException;
 import ru.rutoken.pkcs11jna.CK_MECHANISM;
-import ru.rutoken.pkcs11jna.Pkcs11;
 import ru.rutoken.pkcs11jna.Pkcs11Constants;
 import ru.rutoken.samples.pkcs11utils.DigestAlgorithm;
+import ru.rutoken.samples.pkcs11utils.RtPkcs11Memory;
 
-import java.util.Arrays;
 import java.util.Objects;
 
+/**
+ * Input is collected in buffer and goes to C_DigestUpdate in chunks of {@link #CHUNK_SIZE} bytes,
+ * so byte-at-a-time callers don't make native call per byte.
+ * <p>
+ * The buffer is native memory given to {@link RtPkcs11Memory#C_DigestUpdate} as is.
+ * The digest can be used for many operations on one session, it should be kept with the session.
+ */
 public class RtDigest implements Digest {
+    public static final int CHUNK_SIZE = 64 * 1024;
+
     private final DigestAlgorithm digestAlgorithm;
-    private final Pkcs11 pkcs11;
-    private final long sessionHandle;
+    private final RtPkcs11Memory pkcs11;
+    private final NativeLong session;
+    private final Memory buffer = new Memory(CHUNK_SIZE);
+    private final CK_MECHANISM mechanism;
+    private int bufferLength = 0;
     private boolean mIsOperationInitialized = false;
     
-    public RtDigest(Pkcs11 pkcs11, DigestAlgorithm digestAlgorithm, long sessionHandle) {
+    public RtDigest(RtPkcs11Memory pkcs11, DigestAlgorithm digestAlgorithm, long sessionHandle) {
     	this.pkcs11 = pkcs11;
         this.digestAlgorithm = Objects.requireNonNull(digestAlgorithm);
-        this.sessionHandle = sessionHandle;
+        this.session = new NativeLong(sessionHandle);
+        this.mechanism = createMechanism(digestAlgorithm);
+    }
+
+    private static CK_MECHANISM createMechanism(DigestAlgorithm digestAlgorithm) {
+        if (digestAlgorithm.getAlgorithmParamset() != null) {
+            final Pointer parameter = new Memory(digestAlgorithm.getAlgorithmParamset().length);
+            parameter.write(0, digestAlgorithm.getAlgorithmParamset(), 0,
+                    digestAlgorithm.getAlgorithmParamset().length);
+            return new CK_MECHANISM(digestAlgorithm.getPkcsMechanism(), parameter,
+                    digestAlgorithm.getAlgorithmParamset().length);
+        }
+        // Pass null as parameter and 0 as parameter length if you want to perform hardware digest
+        return new CK_MECHANISM(digestAlgorithm.getPkcsMechanism(), null, 0);
     }
 
     private static void checkReturnValue(NativeLong rv, String functionName) {
@@ -49,27 +73,40 @@ public class RtDigest implements Digest {
 
     @Override
     public void update(byte in) {
-        update(new byte[]{in});
+        if (bufferLength == CHUNK_SIZE)
+            flush();
+        buffer.setByte(bufferLength++, in);
     }
 
     @Override
     public void update(byte[] in, int inOff, int len) {
-        final byte[] chunk = Arrays.copyOfRange(in, inOff, inOff + len);
-        update(chunk);
+        while (len > 0) {
+            if (bufferLength == CHUNK_SIZE)
+                flush();
+            final int n = Math.min(len, CHUNK_SIZE - bufferLength);
+            buffer.write(bufferLength, in, inOff, n);
+            bufferLength += n;
+            inOff += n;
+            len -= n;
+        }
     }
 
     @Override
     public int doFinal(byte[] out, int outOff) {
+        flush();
+        if (!mIsOperationInitialized)
+            init(); // digest of empty input
+
+        // the operation is finished on error too
+        mIsOperationInitialized = false;
         final NativeLongByReference count = new NativeLongByReference();
-        NativeLong rv = pkcs11.C_DigestFinal(new NativeLong(sessionHandle), null, count);
+        NativeLong rv = pkcs11.C_DigestFinal(session, null, count);
         checkReturnValue(rv, "C_DigestFinal");
 
         final byte[] digest = new byte[count.getValue().intValue()];
-        rv = pkcs11.C_DigestFinal(new NativeLong(sessionHandle), digest, count);
+        rv = pkcs11.C_DigestFinal(session, digest, count);
         checkReturnValue(rv, "C_DigestFinal");
 
-        mIsOperationInitialized = false;
-
         final int length = count.getValue().intValue();
         System.arraycopy(digest, 0, out, outOff, length);
         return length;
@@ -77,34 +114,33 @@ public class RtDigest implements Digest {
 
     @Override
     public void reset() {
+        bufferLength = 0;
         if (mIsOperationInitialized) {
             final byte[] result = new byte[getDigestSize()];
             doFinal(result, 0);
         }
     }
 
-    private void update(byte[] chunk) {
-        NativeLong rv;
-        if (!mIsOperationInitialized) {
-        	
-        	CK_MECHANISM mechanism;
-        	if (digestAlgorithm.getAlgorithmParamset() != null) {
-        		final Pointer parameter = new Memory(digestAlgorithm.getAlgorithmParamset().length);
-	            parameter.write(0, digestAlgorithm.getAlgorithmParamset(), 0,
-	                    digestAlgorithm.getAlgorithmParamset().length);
-	            mechanism = new CK_MECHANISM(digestAlgorithm.getPkcsMechanism(), parameter,
-	                    digestAlgorithm.getAlgorithmParamset().length);
-        	} else {
-        		// Pass null as parameter and 0 as parameter length if you want to perform hardware digest
-        		mechanism = new CK_MECHANISM(digestAlgorithm.getPkcsMechanism(), null, 0);
-        	}
-
-            rv = pkcs11.C_DigestInit(new NativeLong(sessionHandle), mechanism);
-            checkReturnValue(rv, "C_DigestInit");
-            mIsOperationInitialized = true;
-        }
+    private void init() {
+        NativeLong rv = pkcs11.C_DigestInit(session, mechanism);
+        checkReturnValue(rv, "C_DigestInit");
+        mIsOperationInitialized = true;
+    }
 
-        rv = pkcs11.C_DigestUpdate(new NativeLong(sessionHandle), chunk, new NativeLong(chunk.length));
+    private void flush() {
+        if (bufferLength == 0)
+            return;
+        // buffered input is dropped on error too
+        final int length = bufferLength;
+        bufferLength = 0;
+        if (!mIsOperationInitialized)
+            init();
+
+        // token reads only length bytes of the buffer
+        final NativeLong rv = pkcs11.C_DigestUpdate(session, buffer, new NativeLong(length));
+        if (rv.longValue() != Pkcs11Constants.CKR_OK)
+            // the operation is finished on error
+            mIsOperationInitialized = false;
         checkReturnValue(rv, "C_DigestUpdate");
     }
 }
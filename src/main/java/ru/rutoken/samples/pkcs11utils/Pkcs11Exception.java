@@ -11,12 +11,30 @@ import ru.rutoken.pkcs11jna.Pkcs11Constants;
 
 public class Pkcs11Exception extends Exception {
 
-    private Pkcs11Exception(String message) {
+    private final long errorCode;
+
+    private Pkcs11Exception(String message, long errorCode) {
         super(message);
+        this.errorCode = errorCode;
     }
 
     public static void throwIfNotOk(String message, NativeLong code) throws Pkcs11Exception {
         if (!Pkcs11Constants.equalsPkcsRV(Pkcs11Constants.CKR_OK, code))
-            throw new Pkcs11Exception(message + ", error code: 0x" + Long.toHexString(code.longValue()));
+            throw new Pkcs11Exception(message + ", error code: 0x" + Long.toHexString(code.longValue()),
+                    code.longValue());
+    }
+
+    public long getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Token was removed. Sessions and object handles opened before are not valid after it is inserted again,
+     * they have to be opened and found again
+     */
+    public boolean isTokenRemoved() {
+        return errorCode == Pkcs11Constants.CKR_DEVICE_REMOVED
+                || errorCode == Pkcs11Constants.CKR_TOKEN_NOT_PRESENT
+                || errorCode == Pkcs11Constants.CKR_SESSION_HANDLE_INVALID;
     }
 }
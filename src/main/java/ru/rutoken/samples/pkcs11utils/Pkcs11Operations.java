@@ -39,13 +39,17 @@ public final class Pkcs11Operations {
     private Pkcs11Operations() {
     }
 
-    public static NativeLong initializePkcs11AndGetFirstToken(Pkcs11 pkcs11) throws Pkcs11Exception {
+    public static void initializePkcs11(Pkcs11 pkcs11) throws Pkcs11Exception {
         CK_C_INITIALIZE_ARGS initializeArgs = new CK_C_INITIALIZE_ARGS(
                 null, null, null, null,
                 new NativeLong(CKF_OS_LOCKING_OK), null);
 
         NativeLong rv = pkcs11.C_Initialize(initializeArgs);
         Pkcs11Exception.throwIfNotOk("C_Initialize failed", rv);
+    }
+
+    public static NativeLong initializePkcs11AndGetFirstToken(Pkcs11 pkcs11) throws Pkcs11Exception {
+        initializePkcs11(pkcs11);
 
         NativeLong[] slots = getSlotList(pkcs11, true);
         if (slots.length == 0)
@@ -55,34 +59,68 @@ public final class Pkcs11Operations {
         // You can select appropriate token by serial number
         List<CK_TOKEN_INFO> tokenInfos = getTokenInfos(pkcs11, slots);
         for (CK_TOKEN_INFO tokenInfo : tokenInfos) {
-            println("Token serial: " + new String(tokenInfo.serialNumber));
+            println("Token serial: " + getTokenSerial(tokenInfo));
         }
         // We'll just take the first one for simplicity
         return slots[0];
     }
 
-    public static void initializePkcs11AndLoginToFirstToken(Pkcs11 pkcs11, NativeLong session, byte[] userPin) throws Pkcs11Exception {
+    /**
+     * @return slot of the token
+     */
+    public static NativeLong initializePkcs11AndLoginToFirstToken(Pkcs11 pkcs11, NativeLong session, byte[] userPin) throws Pkcs11Exception {
         NativeLong token = initializePkcs11AndGetFirstToken(pkcs11);
 
+        session.setValue(openSession(pkcs11, token).longValue());
+
+        login(pkcs11, session, userPin);
+        return token;
+    }
+
+    /**
+     * Open session on the token and log in. Every token needs its own login.
+     * @return logged in session
+     */
+    public static NativeLong loginToToken(Pkcs11 pkcs11, NativeLong token, byte[] userPin) throws Pkcs11Exception {
+        NativeLong session = openSession(pkcs11, token);
+        try {
+            login(pkcs11, session, userPin);
+        } catch (Pkcs11Exception e) {
+            pkcs11.C_CloseSession(session);
+            throw e;
+        }
+        return session;
+    }
+
+    public static void login(Pkcs11 pkcs11, NativeLong session, byte[] userPin) throws Pkcs11Exception {
+        NativeLong rv = pkcs11.C_Login(session, new NativeLong(CKU_USER), userPin,
+                new NativeLong(userPin.length));
+        Pkcs11Exception.throwIfNotOk("C_Login failed", rv);
+    }
+
+    public static NativeLong openSession(Pkcs11 pkcs11, NativeLong token) throws Pkcs11Exception {
         NativeLongByReference sessionPointer = new NativeLongByReference();
         NativeLong rv = pkcs11.C_OpenSession(token, new NativeLong(CKF_SERIAL_SESSION | CKF_RW_SESSION),
                 null, null, sessionPointer);
         Pkcs11Exception.throwIfNotOk("C_OpenSession failed", rv);
-        session.setValue(sessionPointer.getValue().longValue());
-
-		rv = pkcs11.C_Login(session, new NativeLong(CKU_USER), userPin,
-                new NativeLong(userPin.length));
-        Pkcs11Exception.throwIfNotOk("C_Login failed", rv);
+        return new NativeLong(sessionPointer.getValue().longValue());
     }
 
     public static void logoutAndFinalizePkcs11Library(Pkcs11 pkcs11, NativeLong session) {
+        logoutAndCloseSession(pkcs11, session);
+        finalizePkcs11(pkcs11);
+    }
+
+    public static void logoutAndCloseSession(Pkcs11 pkcs11, NativeLong session) {
         NativeLong rv = pkcs11.C_Logout(session);
         checkIfNotOk("C_Logout failed", rv);
 
         rv = pkcs11.C_CloseSession(session);
         checkIfNotOk("C_CloseSession failed", rv);
+    }
 
-        rv = pkcs11.C_Finalize(null);
+    public static void finalizePkcs11(Pkcs11 pkcs11) {
+        NativeLong rv = pkcs11.C_Finalize(null);
         checkIfNotOk("C_Finalize failed", rv);
     }
 
@@ -112,6 +150,13 @@ public final class Pkcs11Operations {
         return tokenInfos;
     }
 
+    /**
+     * Serial number is padded with spaces to 16 characters
+     */
+    public static String getTokenSerial(CK_TOKEN_INFO tokenInfo) {
+        return new String(tokenInfo.serialNumber).trim();
+    }
+
     public static NativeLong[] findObjects(Pkcs11 pkcs11, NativeLong session, CK_ATTRIBUTE[] template, int maxCount)
             throws Pkcs11Exception {
         NativeLong rv = pkcs11.C_FindObjectsInit(session, template, new NativeLong(template.length));
@@ -144,6 +189,13 @@ public final class Pkcs11Operations {
         return certificateValueTemplate[0].pValue.getByteArray(0, certificateValueTemplate[0].ulValueLen.intValue());
     }
 
+    public static byte[] getObjectId(Pkcs11 pkcs11, NativeLong session, NativeLong object) throws Pkcs11Exception {
+        CK_ATTRIBUTE[] idTemplate = (CK_ATTRIBUTE[]) new CK_ATTRIBUTE().toArray(1);
+        idTemplate[0].setAttr(CKA_ID, null, 0);
+        getAttributeValues(pkcs11, session, object, idTemplate);
+        return idTemplate[0].pValue.getByteArray(0, idTemplate[0].ulValueLen.intValue());
+    }
+
     public static void printAllCertificatesInfo(Pkcs11 pkcs11, NativeLong session) throws Pkcs11Exception, IOException {
         CK_ATTRIBUTE[] certificateTemplate = (CK_ATTRIBUTE[]) (new CK_ATTRIBUTE()).toArray(2);
         certificateTemplate[0].setAttr(CKA_CLASS, CKO_CERTIFICATE);
@@ -207,12 +259,37 @@ public final class Pkcs11Operations {
         X509Certificate x509certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
                 .generateCertificate(new ByteArrayInputStream(certificateValue));
 
+        final CK_ATTRIBUTE[] publicKeyValueTemplate = createPublicKeyValueTemplate(x509certificate, 0);
+
+        NativeLong publicKey = findFirstObject(pkcs11, session, publicKeyValueTemplate);
+
+        // Using public key we can find private key handle
+        println("Getting public key ID");
+        CK_ATTRIBUTE[] publicKeyIdTemplate = (CK_ATTRIBUTE[]) new CK_ATTRIBUTE().toArray(1);
+        publicKeyIdTemplate[0].setAttr(CKA_ID, null, 0);
+        getAttributeValues(pkcs11, session, publicKey, publicKeyIdTemplate);
+
+        println("Finding private key by public key ID");
+        CK_ATTRIBUTE[] privateKeyTemplate = (CK_ATTRIBUTE[]) new CK_ATTRIBUTE().toArray(2);
+        privateKeyTemplate[0].setAttr(CKA_CLASS, CKO_PRIVATE_KEY);
+        privateKeyTemplate[1].setAttr(publicKeyIdTemplate[0].type, publicKeyIdTemplate[0].pValue,
+                publicKeyIdTemplate[0].ulValueLen);
+        NativeLong privateKey = findFirstObject(pkcs11, session, privateKeyTemplate);
+
+        return new KeyPair(publicKey, privateKey);
+    }
+
+    /**
+     * Template to find public key of the certificate by its value
+     * @param extraAttributes number of attributes at the end of template to be set by caller
+     */
+    public static CK_ATTRIBUTE[] createPublicKeyValueTemplate(X509Certificate x509certificate, int extraAttributes) {
         final CK_ATTRIBUTE[] publicKeyValueTemplate;
         if (x509certificate.getPublicKey() instanceof RSAPublicKey) {
             RSAPublicKey publicKey = (RSAPublicKey) x509certificate.getPublicKey();
 
             println("Finding public key by modulus and exponent");
-            publicKeyValueTemplate = (CK_ATTRIBUTE[]) new CK_ATTRIBUTE().toArray(4);
+            publicKeyValueTemplate = (CK_ATTRIBUTE[]) new CK_ATTRIBUTE().toArray(4 + extraAttributes);
             publicKeyValueTemplate[0].setAttr(CKA_CLASS, CKO_PUBLIC_KEY);
             publicKeyValueTemplate[1].setAttr(CKA_KEY_TYPE, CKK_RSA);
             publicKeyValueTemplate[2].setAttr(CKA_MODULUS, dropPrecedingZeros(publicKey.getModulus().toByteArray()));
@@ -225,27 +302,11 @@ public final class Pkcs11Operations {
             printHex("Public key value is:", publicKeyValue);
 
             println("Finding public key by value");
-            publicKeyValueTemplate = (CK_ATTRIBUTE[]) new CK_ATTRIBUTE().toArray(2);
+            publicKeyValueTemplate = (CK_ATTRIBUTE[]) new CK_ATTRIBUTE().toArray(2 + extraAttributes);
             publicKeyValueTemplate[0].setAttr(CKA_CLASS, CKO_PUBLIC_KEY);
             publicKeyValueTemplate[1].setAttr(CKA_VALUE, publicKeyValue);
         }
-
-        NativeLong publicKey = findFirstObject(pkcs11, session, publicKeyValueTemplate);
-
-        // Using public key we can find private key handle
-        println("Getting public key ID");
-        CK_ATTRIBUTE[] publicKeyIdTemplate = (CK_ATTRIBUTE[]) new CK_ATTRIBUTE().toArray(1);
-        publicKeyIdTemplate[0].setAttr(CKA_ID, null, 0);
-        getAttributeValues(pkcs11, session, publicKey, publicKeyIdTemplate);
-
-        println("Finding private key by public key ID");
-        CK_ATTRIBUTE[] privateKeyTemplate = (CK_ATTRIBUTE[]) new CK_ATTRIBUTE().toArray(2);
-        privateKeyTemplate[0].setAttr(CKA_CLASS, CKO_PRIVATE_KEY);
-        privateKeyTemplate[1].setAttr(publicKeyIdTemplate[0].type, publicKeyIdTemplate[0].pValue,
-                publicKeyIdTemplate[0].ulValueLen);
-        NativeLong privateKey = findFirstObject(pkcs11, session, privateKeyTemplate);
-
-        return new KeyPair(publicKey, privateKey);
+        return publicKeyValueTemplate;
     }
 
     private static byte[] dropPrecedingZeros(byte[] array) {
@@ -11,18 +11,31 @@ import com.sun.jna.Pointer;
 import com.sun.jna.ptr.NativeLongByReference;
 import ru.rutoken.pkcs11jna.CK_MECHANISM;
 import ru.rutoken.pkcs11jna.Pkcs11;
+import ru.rutoken.pkcs11jna.Pkcs11Constants;
 
+import java.util.Arrays;
+
+/**
+ * Signer for one session. Mechanism and handles are created once, not for every signature.
+ * Instance is not thread safe as the session.
+ */
 public class Pkcs11Signer {
     private final SignAlgorithm signAlgorithm;
     private final Pkcs11 pkcs11;
-    private final long sessionHandle;
-    private final long privateKeyHandle;
+    private final NativeLong session;
+    private final NativeLong privateKey;
+    private final CK_MECHANISM mechanism;
+    private final NativeLongByReference count = new NativeLongByReference();
+    // known after the first signature if algorithm doesn't define it
+    private int signatureSize;
 
     public Pkcs11Signer(SignAlgorithm signAlgorithm, Pkcs11 pkcs11, long sessionHandle, long privateKeyHandle) {
     	this.pkcs11 = pkcs11;
         this.signAlgorithm = signAlgorithm;
-        this.sessionHandle = sessionHandle;
-        this.privateKeyHandle = privateKeyHandle;
+        this.session = new NativeLong(sessionHandle);
+        this.privateKey = new NativeLong(privateKeyHandle);
+        this.mechanism = new CK_MECHANISM(signAlgorithm.getPkcsMechanism(), Pointer.NULL, 0);
+        this.signatureSize = signAlgorithm.getSignatureSize();
     }
 
     public SignAlgorithm getSignAlgorithm() {
@@ -34,18 +47,27 @@ public class Pkcs11Signer {
     }
 
     public byte[] sign(byte[] data) throws Pkcs11Exception {
-        final CK_MECHANISM mechanism = new CK_MECHANISM(signAlgorithm.getPkcsMechanism(), Pointer.NULL, 0);
-        NativeLong rv = pkcs11.C_SignInit(new NativeLong(sessionHandle), mechanism, new NativeLong(privateKeyHandle));
+        NativeLong rv = pkcs11.C_SignInit(session, mechanism, privateKey);
         Pkcs11Exception.throwIfNotOk("C_SignInit failed", rv);
 
-        final NativeLongByReference count = new NativeLongByReference();
-        rv = pkcs11.C_Sign(new NativeLong(sessionHandle), data, new NativeLong(data.length), null, count);
-        Pkcs11Exception.throwIfNotOk("C_Sign failed", rv);
+        final NativeLong dataLength = new NativeLong(data.length);
+        if (signatureSize == 0) {
+            rv = pkcs11.C_Sign(session, data, dataLength, null, count);
+            Pkcs11Exception.throwIfNotOk("C_Sign failed", rv);
+            signatureSize = count.getValue().intValue();
+        }
 
-        final byte[] signature = new byte[count.getValue().intValue()];
-        rv = pkcs11.C_Sign(new NativeLong(sessionHandle), data, new NativeLong(data.length), signature, count);
+        byte[] signature = new byte[signatureSize];
+        count.setValue(new NativeLong(signature.length));
+        rv = pkcs11.C_Sign(session, data, dataLength, signature, count);
+        if (Pkcs11Constants.equalsPkcsRV(Pkcs11Constants.CKR_BUFFER_TOO_SMALL, rv)) {
+            // the operation is still active, count has the required length
+            signature = new byte[count.getValue().intValue()];
+            rv = pkcs11.C_Sign(session, data, dataLength, signature, count);
+        }
         Pkcs11Exception.throwIfNotOk("C_Sign failed", rv);
 
-        return signature;
+        final int length = count.getValue().intValue();
+        return length == signature.length ? signature : Arrays.copyOf(signature, length);
     }
 }
@@ -0,0 +1,15 @@
+package ru.rutoken.samples.pkcs11utils;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import ru.rutoken.pkcs11jna.RtPkcs11;
+
+/**
+ * Rutoken PKCS#11 library with functions that take native memory.
+ * JNA passes the pointer to the library as is, byte[] of {@link ru.rutoken.pkcs11jna.Pkcs11} is copied on every call.
+ * <p>
+ * Load the library with {@code Native.load(libraryPath, RtPkcs11Memory.class)}.
+ */
+public interface RtPkcs11Memory extends RtPkcs11 {
+    NativeLong C_DigestUpdate(NativeLong hSession, Pointer pPart, NativeLong ulPartLen);
+}
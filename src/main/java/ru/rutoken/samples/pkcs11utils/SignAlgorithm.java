@@ -19,86 +19,100 @@ public enum SignAlgorithm {
             RtPkcs11Constants.CKM_GOSTR3410,
             new AlgorithmIdentifier(CryptoProObjectIdentifiers.gostR3410_2001),
             DigestAlgorithm.GOSTR3411_1994,
-            true
+            true,
+            64
     ),
     GOSTR3410_2012_256(
             RtPkcs11Constants.CKM_GOSTR3410,
             new AlgorithmIdentifier(RosstandartObjectIdentifiers.id_tc26_signwithdigest_gost_3410_12_256),
             DigestAlgorithm.GOSTR3411_2012_256,
-            true
+            true,
+            64
     ),
     GOSTR3410_2012_512(
             RtPkcs11Constants.CKM_GOSTR3410_512,
             new AlgorithmIdentifier(RosstandartObjectIdentifiers.id_tc26_signwithdigest_gost_3410_12_512),
             DigestAlgorithm.GOSTR3411_2012_512,
-            true
+            true,
+            128
     ),
     RSA_SHA1(
             Pkcs11Constants.CKM_RSA_PKCS,
             new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption),
             DigestAlgorithm.SHA1,
-            false
+            false,
+            0
     ),
     RSA_SHA224(
             Pkcs11Constants.CKM_RSA_PKCS,
             new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption),
             DigestAlgorithm.SHA224,
-            false
+            false,
+            0
     ),
     RSA_SHA256(
             Pkcs11Constants.CKM_RSA_PKCS,
             new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption),
             DigestAlgorithm.SHA256,
-            false
+            false,
+            0
     ),
     RSA_SHA384(
             Pkcs11Constants.CKM_RSA_PKCS,
             new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption),
             DigestAlgorithm.SHA384,
-            false
+            false,
+            0
     ),
     RSA_SHA512(
             Pkcs11Constants.CKM_RSA_PKCS,
             new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption),
             DigestAlgorithm.SHA512,
-            false
+            false,
+            0
     ),
     RSA_MD5(
             Pkcs11Constants.CKM_RSA_PKCS,
             new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption),
             DigestAlgorithm.MD5,
-            false
+            false,
+            0
     ),
     RSA_RIPEMD128(
             Pkcs11Constants.CKM_RSA_PKCS,
             new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption),
             DigestAlgorithm.RIPEMD128,
-            false
+            false,
+            0
     ),
     RSA_RIPEMD160(
             Pkcs11Constants.CKM_RSA_PKCS,
             new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption),
             DigestAlgorithm.RSA_RIPEMD160,
-            false
+            false,
+            0
     ),
     RSA_RIPEMD256(
             Pkcs11Constants.CKM_RSA_PKCS,
             new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption),
             DigestAlgorithm.RIPEMD256,
-            false
+            false,
+            0
     );
 
     private final long mPkcsMechanism;
     private final AlgorithmIdentifier mAlgorithmIdentifier;
     private final DigestAlgorithm mDigestAlgorithm;
     private final boolean mIsGost;
+    private final int mSignatureSize; // in bytes, 0 if it depends on key
 
     SignAlgorithm(long pkcsMechanism, AlgorithmIdentifier algorithmIdentifier, DigestAlgorithm digestAlgorithm,
-                  boolean isGost) {
+                  boolean isGost, int signatureSize) {
         mPkcsMechanism = pkcsMechanism;
         mAlgorithmIdentifier = algorithmIdentifier;
         mDigestAlgorithm = digestAlgorithm;
         mIsGost = isGost;
+        mSignatureSize = signatureSize;
     }
 
     public long getPkcsMechanism() {
@@ -116,6 +130,10 @@ public enum SignAlgorithm {
     public boolean isGost() {
         return mIsGost;
     }
+
+    public int getSignatureSize() {
+        return mSignatureSize;
+    }
     
     public static SignAlgorithm byAlgorithm(AlgorithmIdentifier id) {
     	for (SignAlgorithm alg : SignAlgorithm.values()) {
@@ -0,0 +1,91 @@
+package com.qwertovsky.cert_gost;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.qwertovsky.cert_gost.store.PfxStore;
+
+/**
+ * Batch of PDF documents signed with PFX store.
+ */
+class BatchPdfSignerTest {
+
+	@TempDir
+	static File keyDir;
+	private static PdfSigner pdfSigner;
+
+	@TempDir
+	File dir;
+
+	@BeforeAll
+	static void createSigner() throws Exception {
+		TestKeys keys = new TestKeys();
+		PfxStore store = new PfxStore(keys.createPfx(keyDir), TestKeys.ALIAS, TestKeys.PIN);
+		pdfSigner = PdfSigner.builder(new CmsSigner(store), store.getCertificateHolder()).build();
+	}
+
+	@AfterAll
+	static void closeSigner() throws Exception {
+		pdfSigner.close();
+	}
+
+	@Test
+	void signToOutputDirectory() throws Exception {
+		List<File> documents = Arrays.asList(createPdf("a.pdf"), createPdf("b.pdf"));
+		File outputDir = new File(dir, "signed");
+		BatchSigner.Result result = sign(new BatchPdfSigner(pdfSigner, 2, outputDir), documents);
+
+		assertEquals(0, result.getFailedCount());
+		for (File document : documents) {
+			assertTrue(Verify.verifyPdf(new File(outputDir, document.getName())));
+		}
+	}
+
+	@Test
+	void outputDirectoryOfDocumentsDoesNotOverwriteThem() throws Exception {
+		List<File> documents = Arrays.asList(createPdf("a.pdf"), createPdf("b.pdf"));
+		byte[] content = Files.readAllBytes(documents.get(0).toPath());
+		// the same directory by another path
+		File outputDir = new File(dir, ".");
+		BatchSigner.Result result = sign(new BatchPdfSigner(pdfSigner, 1, outputDir), documents);
+
+		assertEquals(documents.size(), result.getFailedCount());
+		for (BatchSigner.FileResult fileResult : result.getFiles()) {
+			assertFalse(fileResult.isSuccess());
+			assertTrue(fileResult.getError().startsWith("Output file is the document itself"),
+					fileResult.getError());
+		}
+		assertArrayEquals(content, Files.readAllBytes(documents.get(0).toPath()));
+	}
+
+	private BatchSigner.Result sign(BatchPdfSigner batchPdfSigner, List<File> documents) throws Exception {
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		return batchPdfSigner.sign(documents, new PrintStream(report, true, StandardCharsets.UTF_8));
+	}
+
+	private File createPdf(String name) throws Exception {
+		File file = new File(dir, name);
+		try (PDDocument doc = new PDDocument()) {
+			doc.addPage(new PDPage());
+			doc.save(file);
+		}
+		return file;
+	}
+}
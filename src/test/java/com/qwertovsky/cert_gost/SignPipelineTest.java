@@ -0,0 +1,218 @@
+package com.qwertovsky.cert_gost;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.crypto.Digest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.qwertovsky.cert_gost.store.GostStore;
+import com.qwertovsky.cert_gost.store.PkcsSessionPool;
+import com.qwertovsky.cert_gost.store.PkcsStore;
+import com.qwertovsky.cert_gost.store.SoftPkcs11;
+import com.sun.jna.NativeLong;
+
+import ru.rutoken.pkcs11jna.Pkcs11Constants;
+import ru.rutoken.samples.pkcs11utils.Pkcs11Operations;
+import ru.rutoken.samples.pkcs11utils.RtPkcs11Memory;
+
+/**
+ * Pipeline with software token signs files and reports them in input order.
+ */
+class SignPipelineTest {
+
+	private static final int FILES = 20;
+	private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+	private static TestKeys keys;
+
+	@TempDir
+	File dir;
+	private RtPkcs11Memory pkcs11;
+	private PkcsSessionPool sessionPool;
+	private PkcsStore store;
+
+	@BeforeAll
+	static void createKeys() throws Exception {
+		keys = new TestKeys();
+	}
+
+	@BeforeEach
+	void openToken() throws Exception {
+		pkcs11 = SoftPkcs11.create(keys.certificateHolder, keys.keyPair.getPrivate(), TestKeys.ALIAS);
+		NativeLong slot = new NativeLong(1);
+		NativeLong session = Pkcs11Operations.openSession(pkcs11, slot);
+		sessionPool = new PkcsSessionPool(pkcs11, slot, session, 2);
+		store = new PkcsStore(pkcs11, sessionPool, TestKeys.ALIAS);
+	}
+
+	@AfterEach
+	void closeToken() {
+		sessionPool.close();
+	}
+
+	@Test
+	void filesAreReportedInInputOrder() throws Exception {
+		List<File> files = createFiles(FILES);
+		SignPipeline pipeline = new SignPipeline(new CmsSigner(store), 3, 2, VerifyPolicy.full());
+		BatchSigner.Result result = sign(pipeline, files);
+
+		assertEquals(FILES, result.getFiles().size());
+		for (int i = 0; i < FILES; i++) {
+			BatchSigner.FileResult fileResult = result.getFiles().get(i);
+			assertEquals(files.get(i), fileResult.getFile());
+			assertTrue(fileResult.isSuccess(), fileResult.getError());
+			assertTrue(verify(files.get(i)));
+		}
+		assertEquals(0, result.getFailedCount());
+	}
+
+	@Test
+	void endStopsAllStages() throws Exception {
+		List<File> files = createFiles(FILES);
+		SignPipeline pipeline = new SignPipeline(new CmsSigner(store), 2, 2, VerifyPolicy.off());
+		// the pipeline is used again after the batch has stopped
+		for (int batch = 0; batch < 2; batch++) {
+			sign(pipeline, files);
+			for (SignPipeline.Stage stage : pipeline.getStages()) {
+				assertEquals(FILES, stage.getProcessed(), stage.getName());
+			}
+		}
+
+		// empty batch goes through END only
+		assertEquals(0, sign(pipeline, new ArrayList<>()).getFiles().size());
+	}
+
+	@Test
+	void failedFileDoesNotStopOthers() throws Exception {
+		List<File> files = createFiles(FILES);
+		File missing = new File(dir, "missing.txt");
+		files.add(FILES / 2, missing);
+		SignPipeline pipeline = new SignPipeline(new CmsSigner(store), 3, 2, VerifyPolicy.full());
+		BatchSigner.Result result = sign(pipeline, files);
+
+		assertEquals(files.size(), result.getFiles().size());
+		assertEquals(1, result.getFailedCount());
+		assertFalse(result.getFiles().get(FILES / 2).isSuccess());
+		assertFalse(new File(dir, "missing.txt.sig").exists());
+		for (BatchSigner.FileResult fileResult : result.getFiles()) {
+			assertEquals(fileResult.getFile() != missing, fileResult.isSuccess());
+		}
+	}
+
+	@Test
+	void tokenFailureFailsFiles() throws Exception {
+		List<File> files = createFiles(FILES);
+		SignPipeline pipeline = new SignPipeline(new CmsSigner(store), 3, 2, VerifyPolicy.full());
+		SoftPkcs11.of(pkcs11).setFailure("C_Sign", Pkcs11Constants.CKR_DEVICE_ERROR);
+		BatchSigner.Result result = sign(pipeline, files);
+
+		assertEquals(FILES, result.getFailedCount());
+		for (File file : files) {
+			assertFalse(new File(dir, file.getName() + ".sig").exists());
+		}
+
+		// the token is back, the same pipeline signs again
+		SoftPkcs11.of(pkcs11).setFailure("C_Sign", null);
+		assertEquals(0, sign(pipeline, files).getFailedCount());
+	}
+
+	@Test
+	void errorFailsFileOnly() throws Exception {
+		List<File> files = createFiles(FILES);
+		// every third signature throws Error, not Exception
+		GostStore failingStore = new FailingStore(store, 3);
+		SignPipeline pipeline = new SignPipeline(new CmsSigner(failingStore), 3, 2, VerifyPolicy.full());
+		BatchSigner.Result result = sign(pipeline, files);
+
+		assertEquals(FILES, result.getFiles().size());
+		assertEquals(FILES / 3, result.getFailedCount());
+		for (SignPipeline.Stage stage : pipeline.getStages()) {
+			if (!"write".equals(stage.getName())) {
+				assertEquals(FILES, stage.getProcessed(), stage.getName());
+			}
+		}
+	}
+
+	private BatchSigner.Result sign(SignPipeline pipeline, List<File> files) {
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		// a stage that doesn't pass END hangs the batch
+		return assertTimeoutPreemptively(TIMEOUT,
+				() -> pipeline.sign(files, Instant.now(), new PrintStream(report, true, StandardCharsets.UTF_8)));
+	}
+
+	private List<File> createFiles(int count) throws Exception {
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			File file = new File(dir, "file" + i + ".txt");
+			// files of different size finish hash stage out of order
+			byte[] data = new byte[(count - i) * 10_000];
+			data[0] = (byte) i;
+			Files.write(file.toPath(), data);
+			files.add(file);
+		}
+		return files;
+	}
+
+	private static boolean verify(File file) throws Exception {
+		byte[] sign = Files.readAllBytes(new File(file.getParent(), file.getName() + ".sig").toPath());
+		try (FileInputStream fis = new FileInputStream(file)) {
+			return Verify.verifyDetachedStream(sign, fis);
+		}
+	}
+
+	private static class FailingStore implements GostStore {
+		private final GostStore store;
+		private final int every;
+		private int count;
+
+		FailingStore(GostStore store, int every) {
+			this.store = store;
+			this.every = every;
+		}
+
+		@Override
+		public byte[] signRaw(byte[] data) throws Exception {
+			synchronized (this) {
+				if (++count % every == 0) {
+					throw new AssertionError("Sign error " + count);
+				}
+			}
+			return store.signRaw(data);
+		}
+
+		@Override
+		public X509CertificateHolder getCertificateHolder() throws Exception {
+			return store.getCertificateHolder();
+		}
+
+		@Override
+		public List<X509CertificateHolder> getCertChain() throws Exception {
+			return store.getCertChain();
+		}
+
+		@Override
+		public Digest getDigest(AlgorithmIdentifier digestAlg) throws Exception {
+			return store.getDigest(digestAlg);
+		}
+	}
+}
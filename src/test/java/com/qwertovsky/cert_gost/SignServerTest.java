@@ -0,0 +1,180 @@
+package com.qwertovsky.cert_gost;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.crypto.Digest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.qwertovsky.cert_gost.store.GostStore;
+import com.qwertovsky.cert_gost.store.PfxStore;
+
+/**
+ * Server on loopback with PFX store, requests are made by HTTP client.
+ */
+class SignServerTest {
+
+	private static final String TOKEN = "test-token";
+	private static final byte[] DOCUMENT = "document".getBytes(StandardCharsets.UTF_8);
+
+	@TempDir
+	static File dir;
+	private static GostStore store;
+	private static CmsSigner cmsSigner;
+
+	private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+	private SignServer server;
+
+	@BeforeAll
+	static void createStore() throws Exception {
+		TestKeys keys = new TestKeys();
+		store = new PfxStore(keys.createPfx(dir), TestKeys.ALIAS, TestKeys.PIN);
+		cmsSigner = new CmsSigner(store);
+	}
+
+	@AfterEach
+	void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@Test
+	void signAndVerifyDetached() throws Exception {
+		start(store);
+		HttpResponse<byte[]> signResponse = send(request("/sign/detached").header("Authorization", "Bearer " + TOKEN));
+		assertEquals(200, signResponse.statusCode());
+		byte[] sign = signResponse.body();
+		assertTrue(Verify.verifyDetachedStream(sign, new ByteArrayInputStream(DOCUMENT)));
+
+		HttpResponse<byte[]> verifyResponse = send(request("/verify/detached")
+				.header("Authorization", "Bearer " + TOKEN)
+				.header("X-Signature", Base64.getEncoder().encodeToString(sign)));
+		assertEquals(200, verifyResponse.statusCode());
+		assertEquals("true", new String(verifyResponse.body(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void signAttached() throws Exception {
+		start(store);
+		HttpResponse<byte[]> response = send(request("/sign/attached").header("Authorization", "Bearer " + TOKEN));
+		assertEquals(200, response.statusCode());
+		assertTrue(Verify.verifyAttached(response.body()));
+	}
+
+	@Test
+	void signPdfWithSameOptionsAgain() throws Exception {
+		start(store);
+		File pdfFile = new File(dir, "server.pdf");
+		try (PDDocument doc = new PDDocument()) {
+			doc.addPage(new PDPage());
+			doc.save(pdfFile);
+		}
+		byte[] pdf = Files.readAllBytes(pdfFile.toPath());
+		// the second request takes the signer built by the first one
+		for (int i = 0; i < 2; i++) {
+			HttpResponse<byte[]> response = send(request("/sign/pdf?visual=true&x=100&y=100", pdf)
+					.header("Authorization", "Bearer " + TOKEN));
+			assertEquals(200, response.statusCode());
+			File signedFile = new File(dir, "server_signed" + i + ".pdf");
+			Files.write(signedFile.toPath(), response.body());
+			assertTrue(Verify.verifyPdf(signedFile));
+		}
+	}
+
+	@Test
+	void requestWithoutTokenIsRejected() throws Exception {
+		start(store);
+		assertEquals(401, send(request("/sign/detached")).statusCode());
+		assertEquals(401, send(request("/sign/detached").header("Authorization", "Bearer wrong")).statusCode());
+		assertEquals(401, send(request("/verify/pdf").header("Authorization", TOKEN)).statusCode());
+	}
+
+	@Test
+	void slowUploadDoesNotHoldSignLock() throws Exception {
+		// store without thread safety makes the server sign under lock
+		start(new SingleThreadStore(store));
+		try (Socket socket = new Socket(server.getAddress().getAddress(), server.getAddress().getPort())) {
+			OutputStream os = socket.getOutputStream();
+			os.write(("POST /sign/detached HTTP/1.1\r\n"
+					+ "Host: localhost\r\n"
+					+ "Authorization: Bearer " + TOKEN + "\r\n"
+					+ "Content-Length: 1000000\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			os.write(new byte[10]);
+			os.flush();
+			// the upload stalls while another client signs
+			Thread.sleep(200);
+			HttpResponse<byte[]> response = send(request("/sign/detached")
+					.header("Authorization", "Bearer " + TOKEN)
+					.timeout(Duration.ofSeconds(5)));
+			assertEquals(200, response.statusCode());
+		}
+	}
+
+	private void start(GostStore serverStore) throws Exception {
+		server = new SignServer(serverStore, new CmsSigner(serverStore), 0, 2, TOKEN);
+		server.start();
+	}
+
+	private HttpRequest.Builder request(String path) {
+		return request(path, DOCUMENT);
+	}
+
+	private HttpRequest.Builder request(String path, byte[] body) {
+		URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+		return HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofByteArray(body));
+	}
+
+	private HttpResponse<byte[]> send(HttpRequest.Builder request) throws Exception {
+		return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+	}
+
+	private static class SingleThreadStore implements GostStore {
+		private final GostStore store;
+
+		SingleThreadStore(GostStore store) {
+			this.store = store;
+		}
+
+		@Override
+		public byte[] signRaw(byte[] data) throws Exception {
+			return store.signRaw(data);
+		}
+
+		@Override
+		public X509CertificateHolder getCertificateHolder() throws Exception {
+			return store.getCertificateHolder();
+		}
+
+		@Override
+		public List<X509CertificateHolder> getCertChain() throws Exception {
+			return store.getCertChain();
+		}
+
+		@Override
+		public Digest getDigest(AlgorithmIdentifier digestAlg) throws Exception {
+			return store.getDigest(digestAlg);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.qwertovsky.cert_gost.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.qwertovsky.cert_gost.TestKeys;
+
+import ru.rutoken.pkcs11jna.Pkcs11Constants;
+import ru.rutoken.samples.pkcs11utils.RtPkcs11Memory;
+
+/**
+ * Failover of {@link MultiTokenStore} on software token.
+ */
+class MultiTokenStoreTest {
+
+	private static TestKeys keys;
+
+	private RtPkcs11Memory pkcs11;
+	private MultiTokenStore store;
+
+	@BeforeAll
+	static void createKeys() throws Exception {
+		keys = new TestKeys();
+	}
+
+	@BeforeEach
+	void openToken() throws Exception {
+		pkcs11 = SoftPkcs11.create(keys.certificateHolder, keys.keyPair.getPrivate(), TestKeys.ALIAS);
+		store = MultiTokenStore.open(pkcs11, Collections.emptyList(), new String(TestKeys.PIN).getBytes(),
+				TestKeys.ALIAS, null, 1, MultiTokenStore.Balancing.ROUND_ROBIN, null);
+	}
+
+	@AfterEach
+	void closeToken() {
+		Thread.interrupted();
+		store.close();
+	}
+
+	@Test
+	void interruptedSignIsNotTokenFailure() throws Exception {
+		Thread.currentThread().interrupt();
+		assertThrows(InterruptedException.class, () -> store.signRaw("data".getBytes()));
+		assertTrue(Thread.interrupted());
+
+		assertEquals(64, store.signRaw("data".getBytes()).length);
+	}
+
+	@Test
+	void deviceErrorFailsAllTokens() throws Exception {
+		SoftPkcs11.of(pkcs11).setFailure("C_Sign", Pkcs11Constants.CKR_DEVICE_ERROR);
+		Exception e = assertThrows(Exception.class, () -> store.signRaw("data".getBytes()));
+		assertEquals("All tokens have failed", e.getMessage());
+
+		SoftPkcs11.of(pkcs11).setFailure("C_Sign", null);
+		assertEquals(64, store.signRaw("data".getBytes()).length);
+	}
+}
@@ -0,0 +1,216 @@
+package com.qwertovsky.cert_gost.store;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.RuntimeCryptoException;
+import org.bouncycastle.crypto.digests.GOST3411_2012_256Digest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.qwertovsky.cert_gost.TestKeys;
+import com.sun.jna.NativeLong;
+
+import ru.rutoken.pkcs11jna.Pkcs11Constants;
+import ru.rutoken.samples.bouncycastle.bcprimitives.RtDigest;
+import ru.rutoken.samples.pkcs11utils.DigestAlgorithm;
+import ru.rutoken.samples.pkcs11utils.Pkcs11Operations;
+import ru.rutoken.samples.pkcs11utils.RtPkcs11Memory;
+
+/**
+ * Session pool and cache of {@link PkcsStore} on software token.
+ */
+class PkcsStoreTest {
+
+	private static final int SESSIONS = 3;
+	private static final String SERIAL = "soft";
+
+	private static TestKeys keys;
+
+	@TempDir
+	File dir;
+	private RtPkcs11Memory pkcs11;
+	private PkcsSessionPool sessionPool;
+	private PkcsStore store;
+
+	@BeforeAll
+	static void createKeys() throws Exception {
+		keys = new TestKeys();
+	}
+
+	@BeforeEach
+	void openToken() throws Exception {
+		pkcs11 = SoftPkcs11.create(keys.certificateHolder, keys.keyPair.getPrivate(), TestKeys.ALIAS);
+		NativeLong slot = new NativeLong(1);
+		NativeLong session = Pkcs11Operations.openSession(pkcs11, slot);
+		sessionPool = new PkcsSessionPool(pkcs11, slot, session, SESSIONS);
+		store = new PkcsStore(pkcs11, sessionPool, TestKeys.ALIAS);
+	}
+
+	@AfterEach
+	void closeToken() {
+		sessionPool.close();
+	}
+
+	@Test
+	void concurrentSignsBorrowAndReleaseSessions() throws Exception {
+		int signs = 64;
+		ExecutorService executor = Executors.newFixedThreadPool(SESSIONS * 2);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<byte[]>> futures = new ArrayList<>();
+			for (int i = 0; i < signs; i++) {
+				byte[] data = ("data " + i).getBytes();
+				futures.add(executor.submit(() -> {
+					start.await();
+					// software token fails C_Sign if two threads share a session
+					return store.signRaw(data);
+				}));
+			}
+			start.countDown();
+			for (Future<byte[]> future : futures) {
+				assertEquals(64, future.get(10, TimeUnit.SECONDS).length);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(SESSIONS, sessionPool.getIdleCount());
+	}
+
+	@Test
+	void concurrentTokenDigestsKeepSessionsApart() throws Exception {
+		store.setTokenDigest(true);
+		int digests = 32;
+		ExecutorService executor = Executors.newFixedThreadPool(SESSIONS * 2);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Boolean>> futures = new ArrayList<>();
+			for (int i = 0; i < digests; i++) {
+				byte[] data = new byte[RtDigest.CHUNK_SIZE * 2 + i];
+				data[0] = (byte) i;
+				futures.add(executor.submit(() -> {
+					start.await();
+					// software token mixes data of threads that share a session
+					return Arrays.equals(softDigest(data), tokenDigest(data));
+				}));
+			}
+			start.countDown();
+			for (Future<Boolean> future : futures) {
+				assertTrue(future.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(SESSIONS, sessionPool.getIdleCount());
+	}
+
+	@Test
+	void borrowWaitsWhenPoolIsExhausted() throws Exception {
+		List<NativeLong> sessions = new ArrayList<>();
+		for (int i = 0; i < SESSIONS; i++) {
+			sessions.add(sessionPool.borrow());
+		}
+		assertEquals(0, sessionPool.getIdleCount());
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<byte[]> sign = executor.submit(() -> store.signRaw("data".getBytes()));
+			Thread.sleep(200);
+			assertFalse(sign.isDone());
+
+			sessionPool.release(sessions.remove(0));
+			assertNotNull(sign.get(10, TimeUnit.SECONDS));
+			assertEquals(1, sessionPool.getIdleCount());
+		} finally {
+			executor.shutdownNow();
+			sessions.forEach(sessionPool::release);
+		}
+		assertEquals(SESSIONS, sessionPool.getIdleCount());
+	}
+
+	@Test
+	void failedTokenDigestReleasesSession() throws Exception {
+		store.setTokenDigest(true);
+		Digest digest = store.getDigest(DigestAlgorithm.GOSTR3411_2012_256.getAlgorithmIdentifier());
+		digest.update(new byte[10], 0, 10);
+		assertEquals(SESSIONS - 1, sessionPool.getIdleCount());
+
+		SoftPkcs11.of(pkcs11).setFailure("C_DigestUpdate", Pkcs11Constants.CKR_DEVICE_ERROR);
+		byte[] data = new byte[RtDigest.CHUNK_SIZE * 2];
+		assertThrows(RuntimeCryptoException.class, () -> digest.update(data, 0, data.length));
+		assertEquals(SESSIONS, sessionPool.getIdleCount());
+
+		// the session is ready for the next digest
+		SoftPkcs11.of(pkcs11).setFailure("C_DigestUpdate", null);
+		assertArrayEquals(softDigest(data), tokenDigest(data));
+		assertEquals(SESSIONS, sessionPool.getIdleCount());
+	}
+
+	@Test
+	void closedTokenDigestReleasesSession() throws Exception {
+		store.setTokenDigest(true);
+		Digest digest = store.getDigest(DigestAlgorithm.GOSTR3411_2012_256.getAlgorithmIdentifier());
+		byte[] data = new byte[RtDigest.CHUNK_SIZE + 10];
+		digest.update(data, 0, data.length);
+		assertEquals(SESSIONS - 1, sessionPool.getIdleCount());
+
+		((Closeable) digest).close();
+		assertEquals(SESSIONS, sessionPool.getIdleCount());
+		// close is idempotent
+		((Closeable) digest).close();
+		assertEquals(SESSIONS, sessionPool.getIdleCount());
+
+		assertArrayEquals(softDigest(data), tokenDigest(data));
+	}
+
+	@Test
+	void renewedCertificateMakesCacheEntryStale() throws Exception {
+		File cacheFile = new File(dir, "pkcs.cache");
+		String cacheKey = PkcsCache.idKey(TestKeys.ALIAS);
+		new PkcsStore(pkcs11, sessionPool, TestKeys.ALIAS, PkcsCache.load(cacheFile), SERIAL);
+		assertNotNull(PkcsCache.load(cacheFile).get(SERIAL, cacheKey));
+
+		// the key pair and its id stay, only the certificate is new
+		X509CertificateHolder renewed = keys.renewCertificate();
+		SoftPkcs11.of(pkcs11).setCertificate(renewed);
+		PkcsStore renewedStore = new PkcsStore(pkcs11, sessionPool, TestKeys.ALIAS, PkcsCache.load(cacheFile),
+				SERIAL);
+		assertEquals(renewed, renewedStore.getCertificateHolder());
+		assertArrayEquals(renewed.getEncoded(), PkcsCache.load(cacheFile).get(SERIAL, cacheKey).getCertificate());
+	}
+
+	private byte[] tokenDigest(byte[] data) throws Exception {
+		Digest digest = store.getDigest(DigestAlgorithm.GOSTR3411_2012_256.getAlgorithmIdentifier());
+		digest.update(data, 0, data.length);
+		byte[] hash = new byte[digest.getDigestSize()];
+		digest.doFinal(hash, 0);
+		return hash;
+	}
+
+	private static byte[] softDigest(byte[] data) {
+		Digest digest = new GOST3411_2012_256Digest();
+		digest.update(data, 0, data.length);
+		byte[] hash = new byte[digest.getDigestSize()];
+		digest.doFinal(hash, 0);
+		return hash;
+	}
+}
@@ -0,0 +1,75 @@
+package com.qwertovsky.cert_gost;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Self-signed GOST R 34.10-2012 256 certificate for tests and benchmarks.
+ */
+public class TestKeys {
+
+	public static final String ALIAS = "test";
+	public static final char[] PIN = "1234".toCharArray();
+
+	public final KeyPair keyPair;
+	public final X509Certificate certificate;
+	public final X509CertificateHolder certificateHolder;
+
+	public TestKeys() throws Exception {
+		if (Security.getProvider("BC") == null) {
+			Security.addProvider(new BouncyCastleProvider());
+		}
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECGOST3410-2012", "BC");
+		keyPairGenerator.initialize(new ECGenParameterSpec("Tc26-Gost-3410-12-256-paramSetA"));
+		keyPair = keyPairGenerator.generateKeyPair();
+		certificate = createCertificate(BigInteger.ONE);
+		certificateHolder = new X509CertificateHolder(certificate.getEncoded());
+	}
+
+	/**
+	 * Another certificate of the same key pair, as after renewal
+	 */
+	public X509CertificateHolder renewCertificate() throws Exception {
+		return new X509CertificateHolder(createCertificate(BigInteger.TWO).getEncoded());
+	}
+
+	private X509Certificate createCertificate(BigInteger serialNumber) throws Exception {
+		// OGRN is used to build chain
+		X500Name name = new X500Name("CN=Test,1.2.643.100.3=12345678901,1.2.643.100.1=1234567890123");
+		long day = 24L * 60 * 60 * 1000;
+		Date notBefore = new Date(System.currentTimeMillis() - day);
+		Date notAfter = new Date(notBefore.getTime() + 365 * day);
+		return new JcaX509CertificateConverter().setProvider("BC").getCertificate(
+				new JcaX509v3CertificateBuilder(name, serialNumber, notBefore, notAfter, name, keyPair.getPublic())
+						.build(new JcaContentSignerBuilder("GOST3411-2012-256WITHECGOST3410-2012-256")
+								.setProvider("BC")
+								.build(keyPair.getPrivate())));
+	}
+
+	public File createPfx(File dir) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12", "BC");
+		keyStore.load(null, null);
+		keyStore.setKeyEntry(ALIAS, keyPair.getPrivate(), null, new Certificate[] {certificate});
+		File pfxFile = new File(dir, "test.pfx");
+		try (FileOutputStream fos = new FileOutputStream(pfxFile)) {
+			keyStore.store(fos, PIN);
+		}
+		return pfxFile;
+	}
+}
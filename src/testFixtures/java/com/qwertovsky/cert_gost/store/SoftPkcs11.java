@@ -0,0 +1,303 @@
+package com.qwertovsky.cert_gost.store;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.GOST3411_2012_256Digest;
+import org.bouncycastle.crypto.digests.GOST3411_2012_512Digest;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.signers.ECGOST3410_2012Signer;
+import org.bouncycastle.jcajce.provider.asymmetric.util.ECUtil;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.NativeLongByReference;
+
+import ru.rutoken.pkcs11jna.CK_ATTRIBUTE;
+import ru.rutoken.pkcs11jna.CK_MECHANISM;
+import ru.rutoken.pkcs11jna.CK_TOKEN_INFO;
+import ru.rutoken.pkcs11jna.Pkcs11;
+import ru.rutoken.pkcs11jna.Pkcs11Constants;
+import ru.rutoken.pkcs11jna.RtPkcs11Constants;
+import ru.rutoken.samples.pkcs11utils.RtPkcs11Memory;
+
+/**
+ * Software token with one GOST R 34.10-2012 key and certificate. Digest and sign are done by Bouncy Castle.
+ * <p>
+ * It implements only the calls the application makes, so token code paths run without a device.
+ * USB latency is not simulated. Errors of token can be set with {@link #setFailure(String, Long)}.
+ */
+public class SoftPkcs11 implements InvocationHandler {
+
+	public static final String SERIAL = "SOFT0001";
+
+	private static final long CKR_OPERATION_NOT_INITIALIZED = 0x91;
+
+	private final ECPrivateKeyParameters privateKey;
+	// handle -> attributes
+	private final Map<Long, Map<Long, byte[]>> objects = new TreeMap<>();
+	private final AtomicLong nextSession = new AtomicLong(100);
+	private final Map<Long, long[]> foundObjects = new ConcurrentHashMap<>();
+	private final Map<Long, Digest> digests = new ConcurrentHashMap<>();
+	private final Map<Long, Boolean> signs = new ConcurrentHashMap<>();
+	// function name -> return value
+	private final Map<String, Long> failures = new ConcurrentHashMap<>();
+
+	private SoftPkcs11(X509CertificateHolder certificate, PrivateKey privateKey, String certId) throws Exception {
+		this.privateKey = (ECPrivateKeyParameters) ECUtil.generatePrivateKeyParameter(privateKey);
+		byte[] id = certId.getBytes();
+
+		Map<Long, byte[]> cert = new HashMap<>();
+		cert.put(Pkcs11Constants.CKA_CLASS, nativeLong(Pkcs11Constants.CKO_CERTIFICATE));
+		cert.put(Pkcs11Constants.CKA_ID, id);
+		cert.put(Pkcs11Constants.CKA_CERTIFICATE_TYPE, nativeLong(Pkcs11Constants.CKC_X_509));
+		cert.put(Pkcs11Constants.CKA_TOKEN, new byte[] {Pkcs11Constants.CK_TRUE});
+		cert.put(Pkcs11Constants.CKA_VALUE, certificate.getEncoded());
+		objects.put(1L, cert);
+
+		byte[] publicKeyValue = ASN1OctetString.getInstance(
+				certificate.getSubjectPublicKeyInfo().getPublicKeyData().getOctets()).getOctets();
+		Map<Long, byte[]> publicKey = new HashMap<>();
+		publicKey.put(Pkcs11Constants.CKA_CLASS, nativeLong(Pkcs11Constants.CKO_PUBLIC_KEY));
+		publicKey.put(Pkcs11Constants.CKA_ID, id);
+		publicKey.put(Pkcs11Constants.CKA_VALUE, publicKeyValue);
+		objects.put(2L, publicKey);
+
+		Map<Long, byte[]> key = new HashMap<>();
+		key.put(Pkcs11Constants.CKA_CLASS, nativeLong(Pkcs11Constants.CKO_PRIVATE_KEY));
+		key.put(Pkcs11Constants.CKA_ID, id);
+		objects.put(3L, key);
+	}
+
+	public static RtPkcs11Memory create(X509CertificateHolder certificate, PrivateKey privateKey, String certId)
+			throws Exception {
+		SoftPkcs11 handler = new SoftPkcs11(certificate, privateKey, certId);
+		return (RtPkcs11Memory) Proxy.newProxyInstance(SoftPkcs11.class.getClassLoader(),
+				new Class<?>[] {RtPkcs11Memory.class}, handler);
+	}
+
+	/**
+	 * Handler of the token created by {@link #create(X509CertificateHolder, PrivateKey, String)}
+	 */
+	public static SoftPkcs11 of(Pkcs11 pkcs11) {
+		return (SoftPkcs11) Proxy.getInvocationHandler(pkcs11);
+	}
+
+	/**
+	 * Replace value of the certificate object, key pair stays the same
+	 */
+	public void setCertificate(X509CertificateHolder certificate) throws IOException {
+		objects.get(1L).put(Pkcs11Constants.CKA_VALUE, certificate.getEncoded());
+	}
+
+	/**
+	 * Every call of the function returns the error till it is cleared
+	 * @param rv error code, null to clear
+	 */
+	public void setFailure(String function, Long rv) {
+		if (rv == null) {
+			failures.remove(function);
+		} else {
+			failures.put(function, rv);
+		}
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		Long failure = failures.get(method.getName());
+		if (failure != null) {
+			return new NativeLong(failure);
+		}
+		switch (method.getName()) {
+			case "C_Initialize":
+			case "C_Finalize":
+			case "C_Login":
+			case "C_Logout":
+			case "C_CloseSession":
+			case "C_FindObjectsFinal":
+				return ok();
+			case "C_GetSlotList":
+				return getSlotList((NativeLong[]) args[1], (NativeLongByReference) args[2]);
+			case "C_GetTokenInfo":
+				return getTokenInfo((CK_TOKEN_INFO) args[1]);
+			case "C_OpenSession":
+				((NativeLongByReference) args[4]).setValue(new NativeLong(nextSession.getAndIncrement()));
+				return ok();
+			case "C_FindObjectsInit":
+				return findObjectsInit(handle(args[0]), (CK_ATTRIBUTE[]) args[1]);
+			case "C_FindObjects":
+				return findObjects(handle(args[0]), (NativeLong[]) args[1], (NativeLongByReference) args[3]);
+			case "C_GetAttributeValue":
+				return getAttributeValue(handle(args[1]), (CK_ATTRIBUTE[]) args[2]);
+			case "C_DigestInit":
+				return digestInit(handle(args[0]), (CK_MECHANISM) args[1]);
+			case "C_DigestUpdate":
+				return digestUpdate(handle(args[0]), args[1], ((NativeLong) args[2]).intValue());
+			case "C_DigestFinal":
+				return digestFinal(handle(args[0]), (byte[]) args[1], (NativeLongByReference) args[2]);
+			case "C_SignInit":
+				signs.put(handle(args[0]), Boolean.TRUE);
+				return ok();
+			case "C_Sign":
+				return sign(handle(args[0]), (byte[]) args[1], ((NativeLong) args[2]).intValue(),
+						(byte[]) args[3], (NativeLongByReference) args[4]);
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "SoftPkcs11";
+			default:
+				throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	private NativeLong getSlotList(NativeLong[] slots, NativeLongByReference count) {
+		if (slots != null) {
+			slots[0] = new NativeLong(1);
+		}
+		count.setValue(new NativeLong(1));
+		return ok();
+	}
+
+	private NativeLong getTokenInfo(CK_TOKEN_INFO tokenInfo) {
+		Arrays.fill(tokenInfo.serialNumber, (byte) ' ');
+		byte[] serial = SERIAL.getBytes();
+		System.arraycopy(serial, 0, tokenInfo.serialNumber, 0, serial.length);
+		return ok();
+	}
+
+	private NativeLong findObjectsInit(long session, CK_ATTRIBUTE[] template) {
+		List<Long> found = new ArrayList<>();
+		for (Map.Entry<Long, Map<Long, byte[]>> object : objects.entrySet()) {
+			boolean matches = true;
+			for (CK_ATTRIBUTE attribute : template) {
+				byte[] value = object.getValue().get(attribute.type.longValue());
+				byte[] expected = attribute.pValue.getByteArray(0, attribute.ulValueLen.intValue());
+				if (!Arrays.equals(value, expected)) {
+					matches = false;
+					break;
+				}
+			}
+			if (matches) {
+				found.add(object.getKey());
+			}
+		}
+		foundObjects.put(session, found.stream().mapToLong(Long::longValue).toArray());
+		return ok();
+	}
+
+	private NativeLong findObjects(long session, NativeLong[] result, NativeLongByReference count) {
+		long[] found = foundObjects.remove(session);
+		int n = Math.min(result.length, found.length);
+		for (int i = 0; i < n; i++) {
+			result[i] = new NativeLong(found[i]);
+		}
+		count.setValue(new NativeLong(n));
+		return ok();
+	}
+
+	private NativeLong getAttributeValue(long object, CK_ATTRIBUTE[] template) {
+		for (CK_ATTRIBUTE attribute : template) {
+			byte[] value = objects.get(object).get(attribute.type.longValue());
+			if (attribute.pValue == null) {
+				attribute.ulValueLen = new NativeLong(value.length);
+			} else {
+				attribute.pValue.write(0, value, 0, value.length);
+			}
+		}
+		return ok();
+	}
+
+	private NativeLong digestInit(long session, CK_MECHANISM mechanism) {
+		long type = mechanism.mechanism.longValue();
+		digests.put(session, type == RtPkcs11Constants.CKM_GOSTR3411_12_512
+				? new GOST3411_2012_512Digest()
+				: new GOST3411_2012_256Digest());
+		return ok();
+	}
+
+	// part is byte[] or native memory
+	private NativeLong digestUpdate(long session, Object part, int length) {
+		Digest digest = digests.get(session);
+		if (digest == null) {
+			return new NativeLong(CKR_OPERATION_NOT_INITIALIZED);
+		}
+		byte[] data = part instanceof Pointer ? ((Pointer) part).getByteArray(0, length) : (byte[]) part;
+		digest.update(data, 0, length);
+		return ok();
+	}
+
+	private NativeLong digestFinal(long session, byte[] out, NativeLongByReference count) {
+		Digest digest = digests.get(session);
+		if (digest == null) {
+			return new NativeLong(CKR_OPERATION_NOT_INITIALIZED);
+		}
+		count.setValue(new NativeLong(digest.getDigestSize()));
+		if (out == null) {
+			return ok();
+		}
+		digest.doFinal(out, 0);
+		digests.remove(session);
+		return ok();
+	}
+
+	private NativeLong sign(long session, byte[] data, int length, byte[] out, NativeLongByReference count) {
+		int halfSize = (privateKey.getParameters().getN().bitLength() + 7) / 8;
+		count.setValue(new NativeLong(halfSize * 2));
+		if (out == null) {
+			return ok();
+		}
+		if (out.length < halfSize * 2) {
+			return new NativeLong(Pkcs11Constants.CKR_BUFFER_TOO_SMALL);
+		}
+		if (signs.remove(session) == null) {
+			return new NativeLong(CKR_OPERATION_NOT_INITIALIZED);
+		}
+		ECGOST3410_2012Signer signer = new ECGOST3410_2012Signer();
+		signer.init(true, privateKey);
+		BigInteger[] rs = signer.generateSignature(Arrays.copyOf(data, length));
+		// token returns s || r like Bouncy Castle
+		Arrays.fill(out, 0, halfSize * 2, (byte) 0);
+		copyUnsigned(rs[1], out, 0, halfSize);
+		copyUnsigned(rs[0], out, halfSize, halfSize);
+		return ok();
+	}
+
+	private static void copyUnsigned(BigInteger value, byte[] out, int offset, int size) {
+		byte[] bytes = value.toByteArray();
+		int start = bytes[0] == 0 ? 1 : 0;
+		int length = bytes.length - start;
+		System.arraycopy(bytes, start, out, offset + size - length, length);
+	}
+
+	private static long handle(Object value) {
+		return ((NativeLong) value).longValue();
+	}
+
+	private static NativeLong ok() {
+		return new NativeLong(Pkcs11Constants.CKR_OK);
+	}
+
+	private static byte[] nativeLong(long value) {
+		Memory memory = new Memory(NativeLong.SIZE);
+		memory.setNativeLong(0, new NativeLong(value));
+		return memory.getByteArray(0, NativeLong.SIZE);
+	}
+}